@@ -34,6 +34,14 @@ public class ClientInfo {
         this.connectionNr = nr;
     }
 
+    public TokenBucket getByteLimiter() {
+        return socketReader.byteLimiter;
+    }
+
+    public TokenBucket getFrameLimiter() {
+        return socketReader.frameLimiter;
+    }
+
     @Override
     public String toString() {
         return "connection#" + connectionNr;
@@ -21,86 +21,178 @@
 package org.modelingvalue.syncproxy;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 public class DclareRouter {
-    private static final int  DEFAULT_PORT      = 55055;
-    private static final char DEFAULT_SEPARATOR = '\n';
+    private static final int    DEFAULT_PORT      = 55055;
+    private static final char   DEFAULT_SEPARATOR = '\n';
+    private static final String META_DATA_MARKER  = "\"DServerMetaData:";
 
-    private static int     connectionNumber;
-    public static  boolean SHARE_TO_ALL; //for testing
+    private static final AtomicInteger CONNECTION_NUMBER = new AtomicInteger();
+    public static        boolean       SHARE_TO_ALL; //for testing
 
     public static void main(String[] args) {
-        boolean verbose   = false;
-        int     port      = DEFAULT_PORT;
-        char    separator = DEFAULT_SEPARATOR;
-
-        if (1 <= args.length && args[0].equals("-v")) {
-            verbose = true;
-            System.arraycopy(args, 1, args, 0, args.length - 1);
+        boolean      verbose    = false;
+        int          port       = DEFAULT_PORT;
+        char         separator  = DEFAULT_SEPARATOR;
+        RouterConfig config     = new RouterConfig();
+        List<String> positional = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.equals("-v")) {
+                verbose = true;
+            } else if (arg.startsWith("--")) {
+                int eq = arg.indexOf('=');
+                if (eq < 0) {
+                    throw new Error("option " + arg + " needs a value, options are: " + RouterConfig.getOptionNames());
+                }
+                config.set(arg.substring(2, eq), arg.substring(eq + 1));
+            } else {
+                positional.add(arg);
+            }
         }
-        if (3 <= args.length) {
-            throw new Error("usage: $0 [-v] [<port-num> [<separator>]]");
+        if (3 <= positional.size()) {
+            throw new Error("usage: $0 [-v] [--<option>=<value>...] [<port-num> [<separator>]]");
         }
-        if (2 <= args.length) {
-            if (args[1].length() != 1) {
+        if (2 <= positional.size()) {
+            if (positional.get(1).length() != 1) {
                 throw new Error("separator must be exactly one character");
             }
-            separator = args[1].charAt(0);
+            separator = positional.get(1).charAt(0);
         }
-        if (1 <= args.length) {
-            port = Integer.parseInt(args[0]);
+        if (1 <= positional.size()) {
+            port = Integer.parseInt(positional.get(0));
         }
         try {
-            new DclareRouter(port, separator, verbose);
+            new DclareRouter(port, separator, verbose, config);
         } catch (IOException e) {
             System.err.println("could not open port: " + e.getMessage());
         }
     }
 
-    private final char            separator;
-    private final boolean         verbose;
-    private final ServerSocket    listenSocket;
-    private final int             port;
-    private final Thread          listenThread;
-    private final Set<ClientInfo> connectionSet = new HashSet<>();
-    private       boolean         closingRequested;
+    private final    char               separator;
+    private final    boolean            verbose;
+    private final    RouterConfig       config;
+    private final    LastValueStore     noOpStore;
+    private final    FrameTracer        tracer;
+    private final    TrafficCapture     capture;
+    private final    Semaphore          relaySlots;
+    private final    AtomicLong         relayWaitNanos = new AtomicLong();
+    private final    List<ServerSocket> listenSockets  = new ArrayList<>();
+    private final    ServerSocket       webSocketListenSocket;
+    private final    int                port;
+    private final    int                webSocketPort;
+    private final    List<Thread>       acceptors      = new ArrayList<>();
+    private final    Set<ClientInfo>    connectionSet  = new HashSet<>();
+    private final    Set<SocketReader>  handshaking    = new HashSet<>();
+    private volatile boolean            closingRequested;
+    private volatile ForkJoinPool       fanOutPool;
 
     public DclareRouter() throws IOException {
         this(0, DEFAULT_SEPARATOR, false);
     }
 
     public DclareRouter(int port, char separator, boolean verbose) throws IOException {
+        this(port, separator, verbose, new RouterConfig());
+    }
+
+    public DclareRouter(int port, char separator, boolean verbose, RouterConfig config) throws IOException {
         this.separator = separator;
         if (Character.toString(separator).getBytes().length != 1) {
             throw new Error("separator '" + separator + "' can not be used, only single byte separators are valid");
         }
         this.verbose = verbose;
-        listenSocket = new ServerSocket(port);
-        this.port    = listenSocket.getLocalPort();
-        listenThread = new Thread(() -> {
-            verbose("listening for clients on port " + this.port + "...");
-            while (!listenSocket.isClosed()) {
-                try {
-                    addClient(listenSocket.accept());
-                } catch (IOException e) {
-                    if (!closingRequested) {
-                        log("could not connect with client: " + e.getMessage());
-                    }
+        this.config  = config;
+        noOpStore    = new LastValueStore(config);
+        tracer       = new FrameTracer(config);
+        capture      = config.captureFile == null ? null : new TrafficCapture(Path.of(config.captureFile), separator);
+        relaySlots   = 0 < config.relaySlots ? new Semaphore(config.relaySlots, true) : null;
+        int numAcceptors = Math.max(1, config.acceptorThreads);
+        try {
+            listenSockets.add(openListenSocket(port));
+            this.port = listenSockets.get(0).getLocalPort();
+            // with SO_REUSEPORT every acceptor gets its own listen socket and the kernel spreads the connections over them
+            for (int i = 1; config.reusePort && i < numAcceptors; i++) {
+                listenSockets.add(openListenSocket(this.port));
+            }
+            webSocketListenSocket = 0 <= config.webSocketPort ? openListenSocket(config.webSocketPort) : null;
+            webSocketPort         = webSocketListenSocket != null ? webSocketListenSocket.getLocalPort() : -1;
+        } catch (IOException e) {
+            closeListenSockets();
+            throw e;
+        }
+        for (int i = 0; i < numAcceptors; i++) {
+            ServerSocket listenSocket = listenSockets.get(i % listenSockets.size());
+            String       name         = "SyncProxy-" + this.port + (i == 0 ? "" : "-" + i);
+            acceptors.add(new Thread(() -> accept(listenSocket, this::addClient), name));
+        }
+        if (webSocketListenSocket != null) {
+            acceptors.add(new Thread(() -> accept(webSocketListenSocket, this::addWebSocketClient), "SyncProxyWebSocket-" + webSocketPort));
+        }
+        acceptors.forEach(Thread::start);
+        console("started at port " + this.port + (webSocketListenSocket != null ? " and websocket port " + webSocketPort : ""));
+    }
+
+    private ServerSocket openListenSocket(int port) throws IOException {
+        ServerSocket listenSocket = new ServerSocket();
+        if (config.reusePort) {
+            if (!listenSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                listenSocket.close();
+                throw new IOException("SO_REUSEPORT is not supported on this platform");
+            }
+            listenSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        if (0 < config.receiveBufferSize) {
+            // must be set before binding to have effect on the window of the accepted sockets
+            listenSocket.setReceiveBufferSize(config.receiveBufferSize);
+        }
+        listenSocket.bind(new InetSocketAddress(port), config.backlog);
+        return listenSocket;
+    }
+
+    private interface ClientAdder {
+        void add(Socket sock) throws IOException;
+    }
+
+    private void accept(ServerSocket listenSocket, ClientAdder adder) {
+        verbose("listening for clients on port " + listenSocket.getLocalPort() + "...");
+        while (!listenSocket.isClosed()) {
+            try {
+                adder.add(listenSocket.accept());
+            } catch (IOException e) {
+                if (!closingRequested) {
+                    log("could not connect with client: " + e.getMessage());
                 }
             }
-            verbose("stop listening for clients on port " + this.port);
-        }, "SyncProxy-" + this.port);
-        listenThread.start();
-        console("started at port " + this.port);
+        }
+        verbose("stop listening for clients on port " + listenSocket.getLocalPort());
+    }
+
+    private void configure(Socket sock) throws IOException {
+        sock.setTcpNoDelay(config.tcpNoDelay);
+        sock.setKeepAlive(config.keepAlive);
+        if (0 < config.sendBufferSize) {
+            sock.setSendBufferSize(config.sendBufferSize);
+        }
+        if (0 < config.receiveBufferSize) {
+            sock.setReceiveBufferSize(config.receiveBufferSize);
+        }
     }
 
     public void verbose(String msg) {
@@ -113,6 +205,10 @@ public class DclareRouter {
         return separator;
     }
 
+    public RouterConfig getConfig() {
+        return config;
+    }
+
     public static void log(String msg) {
         System.err.println(msg);
     }
@@ -125,11 +221,72 @@ public class DclareRouter {
         return port;
     }
 
-    public synchronized void addClient(Socket sock) throws IOException {
-        SocketReader sr = new SocketReader(this, sock, connectionNumber++);
+    public int getWebSocketPort() {
+        return webSocketPort;
+    }
+
+    // a fair semaphore hands out the slots in arrival order, so clients that keep relaying take turns round-robin
+    public void acquireRelaySlot() throws InterruptedException {
+        if (relaySlots != null) {
+            long t0 = System.nanoTime();
+            relaySlots.acquire();
+            relayWaitNanos.addAndGet(System.nanoTime() - t0);
+        }
+    }
+
+    public void releaseRelaySlot() {
+        if (relaySlots != null) {
+            relaySlots.release();
+        }
+    }
+
+    public long getRelayWaitNanos() {
+        return relayWaitNanos.get();
+    }
 
-        connectionSet.add(new ClientInfo(sr, connectionNumber));
+    public void addClient(Socket sock) throws IOException {
+        try {
+            configure(sock);
+        } catch (IOException e) {
+            sock.close();
+            throw e;
+        }
+        SocketReader sr = new SocketReader(this, sock, CONNECTION_NUMBER.getAndIncrement());
+        // only start reading once the client is known, the first frame may carry its metadata
+        if (register(sr)) {
+            sr.start();
+        } else {
+            sr.close();
+        }
+    }
+
+    public void addWebSocketClient(Socket sock) throws IOException {
+        try {
+            configure(sock);
+        } catch (IOException e) {
+            sock.close();
+            throw e;
+        }
+        // registers itself after the websocket handshake, until then it is only known as handshaking so that close() can stop it
+        WebSocketReader sr = new WebSocketReader(this, sock, CONNECTION_NUMBER.getAndIncrement());
+        synchronized (this) {
+            if (closingRequested) {
+                sr.close();
+                return;
+            }
+            handshaking.add(sr);
+        }
+        sr.start();
+    }
+
+    synchronized boolean register(SocketReader sr) {
+        handshaking.remove(sr);
+        if (closingRequested) {
+            return false;
+        }
+        connectionSet.add(new ClientInfo(sr, sr.getConnectionNr() + 1));
         console("client connected: " + sr + " (" + connectionSet.size() + " clients now)");
+        return true;
     }
 
     private synchronized ClientInfo findClient(SocketReader r) {
@@ -137,19 +294,43 @@ public class DclareRouter {
     }
 
     public synchronized void removeClient(SocketReader sr) {
+        handshaking.remove(sr);
         if (connectionSet.remove(findClient(sr))) {
             console("client disconnected: " + sr + " (" + connectionSet.size() + " clients now)");
         }
     }
 
+    // created on first use, most routers never have enough recipients for it
+    public ForkJoinPool getFanOutPool() {
+        ForkJoinPool pool = fanOutPool;
+        if (pool == null) {
+            synchronized (this) {
+                pool = fanOutPool;
+                if (pool == null) {
+                    fanOutPool = pool = 0 < config.fanOutThreads ? new ForkJoinPool(config.fanOutThreads) : new ForkJoinPool();
+                }
+            }
+        }
+        return pool;
+    }
+
     public synchronized List<ClientInfo> getClientList(SocketReader except) {
         return connectionSet.stream().filter(ci -> !ci.socketReader.equals(except)).collect(Collectors.toList());
     }
 
+    public void capture(SocketReader r, byte[] frame) {
+        if (capture != null) {
+            capture.record(r.getConnectionNr(), frame);
+        }
+    }
+
+    public boolean hasMetaData(byte[] b) {
+        return new String(b).contains(META_DATA_MARKER);
+    }
+
     public byte[] filterMetaData(SocketReader r, byte[] b) {
-        String s              = new String(b);
-        String metaDataMarker = "\"DServerMetaData:";
-        int    i              = s.indexOf(metaDataMarker);
+        String s = new String(b);
+        int    i = s.indexOf(META_DATA_MARKER);
         if (i > -1) {
             int j = s.indexOf("\"", i + 2);
             j += 2;
@@ -183,6 +364,7 @@ public class DclareRouter {
 
         int sharedModelsIndex = metaData.indexOf(property);
         if (sharedModelsIndex > -1) {
+            Set<String> before = new HashSet<>(info.sharedModels);
             info.sharedModels.clear();
             int startIndex = sharedModelsIndex + property.length() + 1;
             startIndex = metaData.indexOf('[', startIndex);
@@ -198,6 +380,7 @@ public class DclareRouter {
                 info.sharedModels.add(modelId);
                 elementIndex = endModelIndex;
             }
+            info.sharedModels.stream().filter(m -> !before.contains(m)).forEach(noOpStore::forget);
             System.err.println("client " + info + " shared models " + info.sharedModels);
         }
     }
@@ -219,7 +402,7 @@ public class DclareRouter {
 
         idChangeMap.forEach((id, c) -> {
             String modelId = extractModelId(id);
-            if (modelId != null) {
+            if (modelId != null && !(config.suppressNoOps && noOpStore.isNoOp(modelId, id, c))) {
                 modelToChangeMap.computeIfAbsent(modelId, k -> new ArrayList<>()).add(c);
             }
         });
@@ -242,21 +425,63 @@ public class DclareRouter {
         return null;
     }
 
+    public FrameTracer getTracer() {
+        return tracer;
+    }
+
+    // with no-op suppression a change must be checked against the store and queued for the recipients in one go:
+    // two senders of the same object could otherwise leave a recipient on the older value while the store has the newer one
+    public void inNoOpOrder(Runnable queueing) {
+        if (config.suppressNoOps) {
+            synchronized (noOpStore) {
+                queueing.run();
+            }
+        } else {
+            queueing.run();
+        }
+    }
+
+    public long getSuppressedNoOps() {
+        return noOpStore.getSuppressed();
+    }
+
+    private void closeListenSockets() {
+        List<ServerSocket> all = new ArrayList<>(listenSockets);
+        if (webSocketListenSocket != null) {
+            all.add(webSocketListenSocket);
+        }
+        for (ServerSocket listenSocket : all) {
+            try {
+                listenSocket.close();
+            } catch (IOException e) {
+                log("error closing listening socket (" + listenSocket + "): " + e.getMessage());
+            }
+        }
+    }
+
     public int getNumClients() {
         return connectionSet.size();
     }
 
     public void close() {
         closingRequested = true;
-        try {
-            listenSocket.close();
-            listenThread.interrupt();
-        } catch (IOException e) {
-            log("error closing listening socket (" + listenSocket + "): " + e.getMessage());
+        closeListenSockets();
+        acceptors.forEach(Thread::interrupt);
+        // a listen socket is only really closed once the thread blocked in its accept() has left it
+        for (Thread acceptor : acceptors) {
+            try {
+                acceptor.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
         }
-        List<ClientInfo> clientList = getClientList(null);
-        clientList.stream().map(c -> c.socketReader).forEach(SocketReader::close);
-        while (clientList.stream().map(c -> c.socketReader).anyMatch(Thread::isAlive)) {
+        List<SocketReader> readers;
+        synchronized (this) {
+            readers = new ArrayList<>(handshaking);
+        }
+        getClientList(null).forEach(c -> readers.add(c.socketReader));
+        readers.forEach(SocketReader::close);
+        while (readers.stream().anyMatch(Thread::isAlive)) {
             try {
                 // noinspection BusyWait
                 Thread.sleep(1);
@@ -264,5 +489,21 @@ public class DclareRouter {
                 e.printStackTrace();
             }
         }
+        ForkJoinPool pool = fanOutPool;
+        if (pool != null) {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        if (capture != null) {
+            capture.close();
+        }
+        if (verbose && tracer.isEnabled()) {
+            tracer.printReport(System.err);
+            tracer.printSlowFrames(System.err);
+        }
     }
 }
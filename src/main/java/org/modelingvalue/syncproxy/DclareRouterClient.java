@@ -0,0 +1,373 @@
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+//  (C) Copyright 2018-2026 Modeling Value Group B.V. (http://modelingvalue.org)                                         ~
+//                                                                                                                       ~
+//  Licensed under the GNU Lesser General Public License v3.0 (the 'License'). You may not use this file except in       ~
+//  compliance with the License. You may obtain a copy of the License at: https://choosealicense.com/licenses/lgpl-3.0   ~
+//  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on  ~
+//  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the   ~
+//  specific language governing permissions and limitations under the License.                                           ~
+//                                                                                                                       ~
+//  Maintainers:                                                                                                         ~
+//      Wim Bast, Tom Brus                                                                                               ~
+//                                                                                                                       ~
+//  Contributors:                                                                                                        ~
+//      Ronald Krijgsheld ✝, Arjan Kok, Carel Bast                                                                       ~
+// --------------------------------------------------------------------------------------------------------------------- ~
+//  In Memory of Ronald Krijgsheld, 1972 - 2023                                                                          ~
+//      Ronald was suddenly and unexpectedly taken from us. He was not only our long-term colleague and team member      ~
+//      but also our friend. "He will live on in many of the lines of code you see below."                               ~
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+package org.modelingvalue.syncproxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * A client for the {@link DclareRouter} protocol: frames separated by a single byte separator.
+ * <p>
+ * All socket work is done non-blocking on one selector thread. When the connection can not be made or is lost the
+ * client reconnects with exponential backoff, and then re-declares its shared models and resends every frame that was
+ * not completely written. Frames that are sent while a write is pending are written together in one gathering write.
+ * At most {@link #setMaxPendingBytes(long) maxPendingBytes} are kept waiting to be written, {@link #send(byte[])} refuses
+ * frames beyond that.
+ * <p>
+ * Incoming frames are passed to the listener as read-only buffers that are reused by the client: they are only valid
+ * during the call and must be copied if they are needed afterwards.
+ */
+public class DclareRouterClient extends WorkDaemon<Set<SelectionKey>> {
+    public static final long MIN_BACKOFF_MS            = 100;
+    public static final long MAX_BACKOFF_MS            = 10_000;
+    public static final long DEFAULT_MAX_PENDING_BYTES = 64L * 1024 * 1024;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_GATHER       = 64;
+
+    private final String               host;
+    private final int                  port;
+    private final byte                 separator;
+    private final Consumer<ByteBuffer> listener;
+    private final String               clientId;
+    private final Selector             selector;
+    private final Deque<ByteBuffer>    pending         = new ArrayDeque<>();
+    private final ByteBuffer           readBuffer      = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private       ByteBuffer           assembly        = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private       SocketChannel        channel;
+    private       SelectionKey         key;
+    private       volatile boolean     connected;
+    private       long                 backoffMs       = MIN_BACKOFF_MS;
+    private       long                 reconnectAt;
+    private       byte[]               sharedModelsFrame;
+    private       ByteBuffer           queuedSharedModels;
+    private       ByteBuffer[]         writing;         // the batch the selector thread is writing
+    private       ByteBuffer           started;         // the frame that is partly written to the current connection
+    private       long                 pendingBytes;
+    private       long                 maxPendingBytes = DEFAULT_MAX_PENDING_BYTES;
+
+    public DclareRouterClient(String host, int port, Consumer<ByteBuffer> listener) throws IOException {
+        this(host, port, '\n', listener);
+    }
+
+    public DclareRouterClient(String host, int port, char separator, Consumer<ByteBuffer> listener) throws IOException {
+        super("SyncProxyClient-" + host + ":" + port);
+        if (Character.toString(separator).getBytes().length != 1) {
+            throw new Error("separator '" + separator + "' can not be used, only single byte separators are valid");
+        }
+        this.host      = host;
+        this.port      = port;
+        this.separator = (byte) separator;
+        this.listener  = listener;
+        this.clientId  = getName() + "@" + Long.toHexString(System.nanoTime());
+        this.selector  = Selector.open();
+        start();
+    }
+
+    public static String sharedModelsFrame(String clientId, Collection<String> modelIds) {
+        String models = modelIds.stream().map(m -> "\\\"" + m + "\\\"").collect(Collectors.joining(","));
+        return "{\"DServerMetaData:" + clientId + "\":{\"SHARED_MODELS\":\"[" + models + "]\"}}";
+    }
+
+    /**
+     * Declares the models this client shares; the router only relays changes to these models to this client.
+     * The declaration is repeated automatically after every reconnect.
+     */
+    public void setSharedModels(Collection<String> modelIds) {
+        byte[] frame = sharedModelsFrame(clientId, modelIds).getBytes(StandardCharsets.UTF_8);
+        synchronized (pending) {
+            sharedModelsFrame = frame;
+            unqueueSharedModels();
+            // while not connected the declaration is queued by finishConnect()
+            if (connected) {
+                queueSharedModels();
+                pending.addLast(queuedSharedModels);
+            }
+        }
+        selector.wakeup();
+    }
+
+    public void setMaxPendingBytes(long maxPendingBytes) {
+        synchronized (pending) {
+            this.maxPendingBytes = maxPendingBytes;
+        }
+    }
+
+    public boolean send(String frame) {
+        return send(frame.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Queues a frame for sending. Returns false, without queueing it, when that would bring the bytes waiting to be
+     * written above maxPendingBytes, for instance because the router has been unreachable for a while.
+     */
+    public boolean send(byte[] frame) {
+        for (byte b : frame) {
+            if (b == separator) {
+                throw new IllegalArgumentException("frame contains the separator");
+            }
+        }
+        synchronized (pending) {
+            if (maxPendingBytes < pendingBytes + frame.length + 1) {
+                return false;
+            }
+            ByteBuffer b = frame(frame);
+            pendingBytes += b.limit();
+            pending.addLast(b);
+        }
+        selector.wakeup();
+        return true;
+    }
+
+    // the following are called while holding the lock on pending
+
+    private void unqueueSharedModels() {
+        // a declaration that is being or partly written is left alone, it will be followed by the new one
+        ByteBuffer old = queuedSharedModels;
+        if (old != null && old != started && (writing == null || Arrays.stream(writing).noneMatch(b -> b == old)) && pending.removeIf(b -> b == old)) {
+            pendingBytes -= old.limit();
+        }
+        queuedSharedModels = null;
+    }
+
+    private void queueSharedModels() {
+        queuedSharedModels = frame(sharedModelsFrame);
+        pendingBytes += queuedSharedModels.limit();
+    }
+
+    private ByteBuffer frame(byte[] bytes) {
+        return ByteBuffer.allocate(bytes.length + 1).put(bytes).put(separator).flip();
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    protected Set<SelectionKey> waitForWork() throws InterruptedException {
+        try {
+            if (channel == null) {
+                long waitMs = reconnectAt - System.currentTimeMillis();
+                if (0 < waitMs) {
+                    selector.select(waitMs);
+                    selector.selectedKeys().clear();
+                    return Set.of();
+                }
+                try {
+                    connect();
+                } catch (IOException | RuntimeException e) {
+                    // an unresolved host surfaces as an UnresolvedAddressException, which is unchecked
+                    disconnected("could not connect: " + e);
+                    return Set.of();
+                }
+            }
+            updateInterest();
+            selector.select();
+        } catch (IOException e) {
+            disconnected("select failed: " + e.getMessage());
+        }
+        return selector.selectedKeys();
+    }
+
+    @Override
+    protected void execute(Set<SelectionKey> keys) {
+        for (SelectionKey k : keys) {
+            try {
+                if (k.isValid() && k.isConnectable()) {
+                    finishConnect();
+                }
+                if (k.isValid() && k.isReadable()) {
+                    read();
+                }
+                if (k.isValid() && k.isWritable()) {
+                    write();
+                }
+            } catch (IOException e) {
+                disconnected(e.getMessage());
+            }
+        }
+        selector.selectedKeys().clear();
+    }
+
+    private void connect() throws IOException {
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        key = channel.register(selector, SelectionKey.OP_CONNECT);
+        // resolved on every attempt, the router may have moved or DNS may not have been available before
+        if (channel.connect(new InetSocketAddress(host, port))) {
+            finishConnect();
+        }
+    }
+
+    private void finishConnect() throws IOException {
+        if (channel.finishConnect()) {
+            if (channel.getLocalAddress().equals(channel.getRemoteAddress())) {
+                // a TCP simultaneous open with ourselves: happens when the router is down and the ephemeral port equals its port
+                throw new IOException("connected to itself");
+            }
+            backoffMs = MIN_BACKOFF_MS;
+            synchronized (pending) {
+                ByteBuffer head = pending.peekFirst();
+                if (head != null) {
+                    // a frame that was cut off by the previous connection is sent again from the start
+                    head.rewind();
+                }
+                started = null;
+                unqueueSharedModels();
+                if (sharedModelsFrame != null) {
+                    queueSharedModels();
+                    pending.addFirst(queuedSharedModels);
+                }
+                connected = true;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void updateInterest() {
+        if (connected && key.isValid()) {
+            boolean hasPending;
+            synchronized (pending) {
+                hasPending = !pending.isEmpty();
+            }
+            key.interestOps(hasPending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+    }
+
+    private void write() throws IOException {
+        ByteBuffer[] batch;
+        synchronized (pending) {
+            batch   = pending.stream().limit(MAX_GATHER).toArray(ByteBuffer[]::new);
+            writing = batch;
+        }
+        try {
+            channel.write(batch);
+        } finally {
+            synchronized (pending) {
+                writing = null;
+                started = null;
+                for (ByteBuffer b : batch) {
+                    if (b.hasRemaining()) {
+                        started = b.position() == 0 ? null : b;
+                        break;
+                    }
+                    pendingBytes -= b.limit();
+                    pending.removeFirst();
+                }
+            }
+        }
+    }
+
+    private void read() throws IOException {
+        if (channel.read(readBuffer) == -1) {
+            disconnected("connection closed by router");
+            return;
+        }
+        readBuffer.flip();
+        int start = readBuffer.position();
+        int limit = readBuffer.limit();
+        for (int i = start; i < limit; i++) {
+            if (readBuffer.get(i) == separator) {
+                ByteBuffer part = readBuffer.slice(start, i - start);
+                if (assembly.position() == 0) {
+                    deliver(part);
+                } else {
+                    append(part);
+                    deliver(assembly.flip());
+                    assembly.clear();
+                }
+                start = i + 1;
+            }
+        }
+        append(readBuffer.slice(start, limit - start));
+        readBuffer.clear();
+    }
+
+    private void append(ByteBuffer part) {
+        if (assembly.remaining() < part.remaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(2 * assembly.capacity(), assembly.position() + part.remaining()));
+            assembly = bigger.put(assembly.flip());
+        }
+        assembly.put(part);
+    }
+
+    private void deliver(ByteBuffer frame) {
+        try {
+            listener.accept(frame.asReadOnlyBuffer());
+        } catch (RuntimeException e) {
+            DclareRouter.log(getName() + ": frame listener failed: " + e);
+        }
+    }
+
+    private void disconnected(String reason) {
+        if (connected) {
+            DclareRouter.log(getName() + ": disconnected (" + reason + "), reconnecting");
+        }
+        closeChannel();
+        assembly.clear();
+        reconnectAt = System.currentTimeMillis() + backoffMs;
+        backoffMs   = Math.min(MAX_BACKOFF_MS, 2 * backoffMs);
+    }
+
+    private void closeChannel() {
+        connected = false;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                DclareRouter.log(getName() + ": error closing channel: " + e.getMessage());
+            }
+            channel = null;
+            key     = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            super.run();
+        } finally {
+            closeChannel();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                DclareRouter.log(getName() + ": error closing selector: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        selector.wakeup();
+    }
+}
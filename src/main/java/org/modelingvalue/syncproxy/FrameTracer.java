@@ -0,0 +1,153 @@
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+//  (C) Copyright 2018-2026 Modeling Value Group B.V. (http://modelingvalue.org)                                         ~
+//                                                                                                                       ~
+//  Licensed under the GNU Lesser General Public License v3.0 (the 'License'). You may not use this file except in       ~
+//  compliance with the License. You may obtain a copy of the License at: https://choosealicense.com/licenses/lgpl-3.0   ~
+//  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on  ~
+//  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the   ~
+//  specific language governing permissions and limitations under the License.                                           ~
+//                                                                                                                       ~
+//  Maintainers:                                                                                                         ~
+//      Wim Bast, Tom Brus                                                                                               ~
+//                                                                                                                       ~
+//  Contributors:                                                                                                        ~
+//      Ronald Krijgsheld ✝, Arjan Kok, Carel Bast                                                                       ~
+// --------------------------------------------------------------------------------------------------------------------- ~
+//  In Memory of Ronald Krijgsheld, 1972 - 2023                                                                          ~
+//      Ronald was suddenly and unexpectedly taken from us. He was not only our long-term colleague and team member      ~
+//      but also our friend. "He will live on in many of the lines of code you see below."                               ~
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+package org.modelingvalue.syncproxy;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Samples one in {@link RouterConfig#traceSampleRate} frames and records how long each stage of routing it took, from
+ * its arrival at the router up to the final write to each recipient. Traces of frames that took longer than
+ * {@link RouterConfig#slowFrameMillis} to reach a recipient are kept for {@link #printSlowFrames(PrintStream)}.
+ */
+public class FrameTracer {
+    public enum Stage {
+        READ,      // arrival of the first bytes until the frame is complete
+        FILTER,    // metadata filtering
+        SPLIT,     // splitting into changes per model
+        QUEUE,     // building the payload for the recipient and queueing it
+        SEND_LOCK, // waiting in the recipient's outbox for the write lock
+        WRITE,     // writing to the recipient's socket
+        TOTAL      // arrival until written to the recipient
+    }
+
+    private final RouterConfig                 config;
+    private final Map<Stage, LatencyHistogram> histograms = new EnumMap<>(Stage.class);
+    private final Deque<String>                slowFrames = new ArrayDeque<>();
+    private final AtomicLong                   frames     = new AtomicLong();
+
+    FrameTracer(RouterConfig config) {
+        this.config = config;
+        for (Stage s : Stage.values()) {
+            histograms.put(s, new LatencyHistogram());
+        }
+    }
+
+    public boolean isEnabled() {
+        return 0 < config.traceSampleRate;
+    }
+
+    // called when the first bytes of a frame have arrived; returns null if the frame is not sampled
+    Trace arrived(Object source) {
+        if (isEnabled() && frames.getAndIncrement() % config.traceSampleRate == 0) {
+            return new Trace(source, System.nanoTime());
+        }
+        return null;
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return histograms.get(stage);
+    }
+
+    public void printReport(PrintStream out) {
+        out.println("frame latency per stage (1 in " + config.traceSampleRate + " frames sampled):");
+        histograms.forEach((s, h) -> out.printf(Locale.ROOT, "    %-9s %s%n", s, h));
+    }
+
+    public void printSlowFrames(PrintStream out) {
+        List<String> copy;
+        synchronized (slowFrames) {
+            copy = new ArrayList<>(slowFrames);
+        }
+        out.println(copy.size() + " slow frames (more than " + config.slowFrameMillis + " ms):");
+        copy.forEach(t -> out.println("    " + t));
+    }
+
+    public void reset() {
+        histograms.values().forEach(LatencyHistogram::reset);
+        synchronized (slowFrames) {
+            slowFrames.clear();
+        }
+    }
+
+    class Trace {
+        private final Object source;
+        private final long   arrival;
+        private       long   readDone;
+        private       long   filterDone;
+        private       long   splitDone;
+        private       int    size;
+
+        private Trace(Object source, long arrival) {
+            this.source  = source;
+            this.arrival = arrival;
+        }
+
+        void read(int size) {
+            this.size = size;
+            readDone  = System.nanoTime();
+            record(Stage.READ, readDone - arrival);
+        }
+
+        void filtered() {
+            filterDone = System.nanoTime();
+            record(Stage.FILTER, filterDone - readDone);
+        }
+
+        void split() {
+            splitDone = System.nanoTime();
+            record(Stage.SPLIT, splitDone - filterDone);
+        }
+
+        void written(Object recipient, long queued, long writeStart, long writeEnd) {
+            record(Stage.QUEUE, queued - splitDone);
+            record(Stage.SEND_LOCK, writeStart - queued);
+            record(Stage.WRITE, writeEnd - writeStart);
+            long total = writeEnd - arrival;
+            record(Stage.TOTAL, total);
+            if (config.slowFrameMillis * 1_000_000L < total) {
+                String line = String.format(Locale.ROOT, "%d bytes from %s to %s: read=%.3f filter=%.3f split=%.3f queue=%.3f lock=%.3f write=%.3f total=%.3f ms", //
+                        size, source, recipient, ms(readDone - arrival), ms(filterDone - readDone), ms(splitDone - filterDone), //
+                        ms(queued - splitDone), ms(writeStart - queued), ms(writeEnd - writeStart), ms(total));
+                synchronized (slowFrames) {
+                    if (config.slowFrameLimit <= slowFrames.size()) {
+                        slowFrames.removeFirst();
+                    }
+                    slowFrames.addLast(line);
+                }
+            }
+        }
+
+        private void record(Stage stage, long nanos) {
+            histograms.get(stage).record(nanos);
+        }
+
+        private static double ms(long nanos) {
+            return nanos / 1e6;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+//  (C) Copyright 2018-2026 Modeling Value Group B.V. (http://modelingvalue.org)                                         ~
+//                                                                                                                       ~
+//  Licensed under the GNU Lesser General Public License v3.0 (the 'License'). You may not use this file except in       ~
+//  compliance with the License. You may obtain a copy of the License at: https://choosealicense.com/licenses/lgpl-3.0   ~
+//  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on  ~
+//  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the   ~
+//  specific language governing permissions and limitations under the License.                                           ~
+//                                                                                                                       ~
+//  Maintainers:                                                                                                         ~
+//      Wim Bast, Tom Brus                                                                                               ~
+//                                                                                                                       ~
+//  Contributors:                                                                                                        ~
+//      Ronald Krijgsheld ✝, Arjan Kok, Carel Bast                                                                       ~
+// --------------------------------------------------------------------------------------------------------------------- ~
+//  In Memory of Ronald Krijgsheld, 1972 - 2023                                                                          ~
+//      Ronald was suddenly and unexpectedly taken from us. He was not only our long-term colleague and team member      ~
+//      but also our friend. "He will live on in many of the lines of code you see below."                               ~
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+package org.modelingvalue.syncproxy;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the last change that was routed for each object id, so that changes that do not differ from what the
+ * peers already got can be dropped before fan-out. The memory for all models together is limited to
+ * {@link RouterConfig#noOpBudget}; when that is exceeded entries are evicted according to {@link RouterConfig#noOpEviction}.
+ */
+class LastValueStore {
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final RouterConfig     config;
+    private final Map<Key, String> values;
+    private       long             bytes;
+    private       long             suppressed;
+
+    private record Key(String modelId, String id) {
+    }
+
+    LastValueStore(RouterConfig config) {
+        this.config = config;
+        this.values = new LinkedHashMap<>(16, 0.75f, config.noOpEviction == RouterConfig.Eviction.LRU);
+    }
+
+    synchronized boolean isNoOp(String modelId, String id, String change) {
+        Key    key = new Key(modelId, id);
+        String old = values.get(key);
+        if (change.equals(old)) {
+            suppressed++;
+            return true;
+        }
+        values.put(key, change);
+        bytes += size(key, change) - (old == null ? 0 : size(key, old));
+        Iterator<Map.Entry<Key, String>> it = values.entrySet().iterator();
+        while (config.noOpBudget < bytes && it.hasNext()) {
+            Map.Entry<Key, String> eldest = it.next();
+            bytes -= size(eldest.getKey(), eldest.getValue());
+            it.remove();
+        }
+        return false;
+    }
+
+    // must be called when a client starts sharing a model: that client did not get the values remembered so far
+    synchronized void forget(String modelId) {
+        Iterator<Map.Entry<Key, String>> it = values.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, String> e   = it.next();
+            Key                    key = e.getKey();
+            if (key.modelId().equals(modelId)) {
+                bytes -= size(key, e.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    synchronized long getSuppressed() {
+        return suppressed;
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    private static long size(Key key, String change) {
+        return 2L * (key.modelId().length() + key.id().length() + change.length()) + ENTRY_OVERHEAD;
+    }
+}
@@ -0,0 +1,185 @@
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+//  (C) Copyright 2018-2026 Modeling Value Group B.V. (http://modelingvalue.org)                                         ~
+//                                                                                                                       ~
+//  Licensed under the GNU Lesser General Public License v3.0 (the 'License'). You may not use this file except in       ~
+//  compliance with the License. You may obtain a copy of the License at: https://choosealicense.com/licenses/lgpl-3.0   ~
+//  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on  ~
+//  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the   ~
+//  specific language governing permissions and limitations under the License.                                           ~
+//                                                                                                                       ~
+//  Maintainers:                                                                                                         ~
+//      Wim Bast, Tom Brus                                                                                               ~
+//                                                                                                                       ~
+//  Contributors:                                                                                                        ~
+//      Ronald Krijgsheld ✝, Arjan Kok, Carel Bast                                                                       ~
+// --------------------------------------------------------------------------------------------------------------------- ~
+//  In Memory of Ronald Krijgsheld, 1972 - 2023                                                                          ~
+//      Ronald was suddenly and unexpectedly taken from us. He was not only our long-term colleague and team member      ~
+//      but also our friend. "He will live on in many of the lines of code you see below."                               ~
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+package org.modelingvalue.syncproxy;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The outbound queue of one client.
+ * <p>
+ * Frames are written by whichever thread holds the write lock. A writer only takes on the frames that are queued when
+ * it gets the lock, so it never keeps writing the traffic of other senders; a sender whose frame was taken on by
+ * another writer does not wait for it. Small frames go into a priority lane that is drained before the bulk
+ * lane, unless they touch a model that a queued bulk frame also touches: that keeps the per-model order intact.
+ * Frames without model information (<code>SHARE_TO_ALL</code>) are assumed to touch every model.
+ */
+class Outbox {
+    private final SocketReader    owner;
+    private final RouterConfig    config;
+    private final Deque<Outgoing> priorityLane = new ArrayDeque<>();
+    private final Deque<Outgoing> bulkLane     = new ArrayDeque<>();
+    private final ReentrantLock   writeLock    = new ReentrantLock();
+    private       long            queuedBytes;
+    private       long            queued;    // number of frames ever queued, the ticket of the last one
+    private       long            takenOn;   // number of frames that a writer has taken on
+    private       int             streamers; // threads streaming or waiting to stream, they write what is queued meanwhile
+
+    private record Outgoing(byte[] bytes, Set<String> models, FrameTracer.Trace trace, long queued) {
+    }
+
+    Outbox(SocketReader owner, RouterConfig config) {
+        this.owner  = owner;
+        this.config = config;
+    }
+
+    // never blocks; returns the ticket to pass to drain()
+    long queue(byte[] bytes, Set<String> models, FrameTracer.Trace trace) {
+        return enqueue(new Outgoing(bytes, models, trace, trace == null ? 0 : System.nanoTime()));
+    }
+
+    private synchronized long enqueue(Outgoing o) {
+        if (o.bytes.length <= config.smallFrameLimit && bulkLane.stream().noneMatch(b -> overlaps(b.models, o.models))) {
+            priorityLane.add(o);
+        } else {
+            bulkLane.add(o);
+        }
+        queuedBytes += o.bytes.length;
+        return ++queued;
+    }
+
+    private synchronized Outgoing poll() {
+        Outgoing o = priorityLane.poll();
+        if (o == null) {
+            o = bulkLane.poll();
+        }
+        if (o != null) {
+            queuedBytes -= o.bytes.length;
+        }
+        return o;
+    }
+
+    synchronized int getNumQueued() {
+        return priorityLane.size() + bulkLane.size();
+    }
+
+    private synchronized boolean isFull() {
+        return config.maxQueuedBytes < queuedBytes;
+    }
+
+    private synchronized boolean isTakenOn(long ticket) {
+        return ticket <= takenOn || 0 < streamers;
+    }
+
+    // makes sure the frames up to the ticket get written: returns at once when another writer has taken them on,
+    // otherwise waits for the lock; also waits when more than maxQueuedBytes are queued
+    void drain(long ticket) throws IOException {
+        if (isFull()) {
+            writeLock.lock();
+        } else if (isTakenOn(ticket)) {
+            return;
+        } else if (!writeLock.tryLock()) {
+            // the current writer may have taken it on in the meantime
+            if (isTakenOn(ticket)) {
+                return;
+            }
+            writeLock.lock();
+        }
+        try {
+            writeTakenOn();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // like drain() but never waits: returns false when the caller still has to drain() the ticket itself
+    boolean tryDrain(long ticket) throws IOException {
+        if (isFull()) {
+            return false;
+        } else if (isTakenOn(ticket)) {
+            return true;
+        } else if (!writeLock.tryLock()) {
+            return isTakenOn(ticket);
+        }
+        try {
+            writeTakenOn();
+        } finally {
+            writeLock.unlock();
+        }
+        return true;
+    }
+
+    // only called with the write lock held
+    private void writeTakenOn() throws IOException {
+        int n;
+        synchronized (this) {
+            takenOn = queued;
+            n       = getNumQueued();
+        }
+        for (; 0 < n; n--) {
+            Outgoing o = poll();
+            if (o == null) {
+                // cleared because the client is closed
+                return;
+            }
+            if (o.trace == null) {
+                owner.write(o.bytes);
+            } else {
+                long writeStart = System.nanoTime();
+                owner.write(o.bytes);
+                o.trace.written(owner, o.queued, writeStart, System.nanoTime());
+            }
+        }
+    }
+
+    // gives the caller exclusive access to the client's stream for writing one frame in parts
+    void lockForStreaming() {
+        synchronized (this) {
+            streamers++;
+        }
+        writeLock.lock();
+    }
+
+    // frames queued in the meantime are not written: pass the returned ticket to drain() once no other outbox is held anymore
+    long unlockAfterStreaming() {
+        long ticket;
+        synchronized (this) {
+            streamers--;
+            ticket = queued;
+        }
+        writeLock.unlock();
+        return ticket;
+    }
+
+    synchronized void clear() {
+        priorityLane.clear();
+        bulkLane.clear();
+        queuedBytes = 0;
+        takenOn     = queued;
+    }
+
+    private static boolean overlaps(Set<String> a, Set<String> b) {
+        return a == null || b == null || !Collections.disjoint(a, b);
+    }
+}
@@ -0,0 +1,127 @@
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+//  (C) Copyright 2018-2026 Modeling Value Group B.V. (http://modelingvalue.org)                                         ~
+//                                                                                                                       ~
+//  Licensed under the GNU Lesser General Public License v3.0 (the 'License'). You may not use this file except in       ~
+//  compliance with the License. You may obtain a copy of the License at: https://choosealicense.com/licenses/lgpl-3.0   ~
+//  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on  ~
+//  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the   ~
+//  specific language governing permissions and limitations under the License.                                           ~
+//                                                                                                                       ~
+//  Maintainers:                                                                                                         ~
+//      Wim Bast, Tom Brus                                                                                               ~
+//                                                                                                                       ~
+//  Contributors:                                                                                                        ~
+//      Ronald Krijgsheld ✝, Arjan Kok, Carel Bast                                                                       ~
+// --------------------------------------------------------------------------------------------------------------------- ~
+//  In Memory of Ronald Krijgsheld, 1972 - 2023                                                                          ~
+//      Ronald was suddenly and unexpectedly taken from us. He was not only our long-term colleague and team member      ~
+//      but also our friend. "He will live on in many of the lines of code you see below."                               ~
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+package org.modelingvalue.syncproxy;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The tuning options of a {@link DclareRouter}. Every public field can also be set from the command line with
+ * <code>--&lt;field&gt;=&lt;value&gt;</code>.
+ */
+public class RouterConfig {
+    public enum Eviction {
+        LRU,
+        FIFO
+    }
+
+    public static final int DEFAULT_SMALL_FRAME_LIMIT = 16 * 1024;
+    public static final int DEFAULT_MAX_QUEUED_BYTES  = 64 * 1024 * 1024;
+    public static final int DEFAULT_CHUNK_SIZE        = 64 * 1024;
+    public static final int DEFAULT_CUT_THROUGH       = 16 * 1024 * 1024;
+    public static final int DEFAULT_NO_OP_BUDGET      = 64 * 1024 * 1024;
+    public static final int DEFAULT_BACKLOG           = 1024;
+    public static final int DEFAULT_PARALLEL_FAN_OUT  = 32;
+
+    public int smallFrameLimit     = DEFAULT_SMALL_FRAME_LIMIT; // frames up to this size may overtake queued bulk frames (0 disables the priority lane)
+    public int maxQueuedBytes      = DEFAULT_MAX_QUEUED_BYTES;  // above this a sender blocks until the recipient's outbox has drained
+    public int chunkSize           = DEFAULT_CHUNK_SIZE;        // size of the read buffer per client, also the unit in which cut-through frames are relayed
+    public int cutThroughThreshold = DEFAULT_CUT_THROUGH;       // in SHARE_TO_ALL mode frames larger than this are streamed to the recipients instead of buffered (0 disables)
+
+    public boolean  suppressNoOps = false;                // drop change entries that equal the last routed change for the same object
+    public long     noOpBudget    = DEFAULT_NO_OP_BUDGET; // approximate memory for remembering routed changes of all models together
+    public Eviction noOpEviction  = Eviction.LRU;         // which remembered change to drop first when the budget is exceeded
+
+    public double clientByteRate   = 0;   // bytes per second one client may send (0 is unlimited)
+    public double clientFrameRate  = 0;   // frames per second one client may send (0 is unlimited)
+    public double rateBurstSeconds = 1.0; // how many seconds worth of tokens a client may use in one burst
+    public int    relaySlots       = 0;   // number of clients that may relay at the same time, handed out in arrival order (0 is unlimited)
+
+    public int traceSampleRate = 0;    // trace the latency of one in this many frames (0 disables tracing)
+    public int slowFrameMillis = 1000; // traced frames that take longer than this to reach a recipient are kept
+    public int slowFrameLimit  = 100;  // the number of slow frame traces kept
+
+    public String captureFile = null; // record all incoming frames to this file, for TrafficReplay
+
+    public int     acceptorThreads   = 1;               // threads accepting connections
+    public int     backlog           = DEFAULT_BACKLOG; // length of the queue of connections not yet accepted
+    public boolean reusePort         = false;           // give every acceptor its own listen socket on the same port with SO_REUSEPORT
+    public boolean tcpNoDelay        = true;            // TCP_NODELAY on client sockets
+    public boolean keepAlive         = false;           // SO_KEEPALIVE on client sockets
+    public int     sendBufferSize    = 0;               // SO_SNDBUF of client sockets (0 is the system default)
+    public int     receiveBufferSize = 0;               // SO_RCVBUF of client sockets (0 is the system default)
+
+    public int     webSocketPort   = -1;    // also accept WebSocket clients on this port (0 picks a free port, -1 disables)
+    public boolean webSocketBinary = false; // send frames to WebSocket clients as binary instead of text messages
+
+    public int parallelFanOutThreshold = DEFAULT_PARALLEL_FAN_OUT; // frames for at least this many recipients are handed out by a work-stealing pool (0 disables)
+    public int fanOutThreads           = 0;                        // threads of that pool (0 is the number of processors)
+
+    private static Stream<Field> options() {
+        return Arrays.stream(RouterConfig.class.getFields()).filter(f -> !Modifier.isStatic(f.getModifiers()));
+    }
+
+    public static List<String> getOptionNames() {
+        return options().map(Field::getName).collect(Collectors.toList());
+    }
+
+    /**
+     * Sets the option with the given field name from its command line representation.
+     */
+    public void set(String name, String value) {
+        Field field = options().filter(f -> f.getName().equals(name)).findFirst().orElseThrow(() -> new Error("unknown option '" + name + "', options are: " + getOptionNames()));
+        try {
+            Class<?> type = field.getType();
+            if (type == int.class) {
+                field.setInt(this, Integer.parseInt(value));
+            } else if (type == long.class) {
+                field.setLong(this, Long.parseLong(value));
+            } else if (type == double.class) {
+                field.setDouble(this, Double.parseDouble(value));
+            } else if (type == boolean.class) {
+                if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+                    throw new IllegalArgumentException("expected true or false");
+                }
+                field.setBoolean(this, Boolean.parseBoolean(value));
+            } else if (type == Eviction.class) {
+                field.set(this, Eviction.valueOf(value.toUpperCase()));
+            } else {
+                field.set(this, value);
+            }
+        } catch (IllegalArgumentException | IllegalAccessException e) {
+            throw new Error("illegal value '" + value + "' for option " + name + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RouterConfig" + options().map(f -> {
+            try {
+                return f.getName() + "=" + f.get(this);
+            } catch (IllegalAccessException e) {
+                throw new Error(e);
+            }
+        }).collect(Collectors.toList());
+    }
+}
@@ -28,95 +28,341 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 class SocketReader extends WorkDaemon<byte[]> {
-    private final DclareRouter router;
-    private final Socket       sock;
-    private final InputStream  in;
-    private final OutputStream out;
+    protected final DclareRouter      router;
+    protected final Socket            sock;
+    private final   int               nr;
+    private final   InputStream       in;
+    protected final OutputStream      out;
+    protected final Outbox            outbox;
+    final           TokenBucket       byteLimiter;
+    final           TokenBucket       frameLimiter;
+    protected final byte[]            readBuffer;
+    protected       int               readPos;
+    protected       int               readLimit;
+    protected       int               partStart;
+    protected       int               partEnd;
+    protected       boolean           eof;
+    private         boolean           cutThrough;
+    private         FrameTracer.Trace trace;
 
     public SocketReader(DclareRouter router, Socket sock, int i) throws IOException {
-        super("SyncProxyReader-" + i);
+        this(router, sock, i, "SyncProxyReader-" + i);
+    }
+
+    protected SocketReader(DclareRouter router, Socket sock, int i, String name) throws IOException {
+        super(name);
         this.router = router;
         this.sock = sock;
+        this.nr = i;
         this.in = sock.getInputStream();
         this.out = sock.getOutputStream();
-        start();
+        this.outbox = new Outbox(this, router.getConfig());
+        this.readBuffer = new byte[router.getConfig().chunkSize];
+        this.byteLimiter = new TokenBucket(router.getConfig().clientByteRate, router.getConfig().rateBurstSeconds);
+        this.frameLimiter = new TokenBucket(router.getConfig().clientFrameRate, router.getConfig().rateBurstSeconds);
+    }
+
+    int getConnectionNr() {
+        return nr;
+    }
+
+    protected boolean isCutThrough() {
+        return cutThrough;
     }
 
     private boolean isNonEmpty(byte[] b) {
         return !new String(b).equals("{}");
     }
 
+    // refills the read buffer when it is used up; returns false at EOF
+    protected boolean fill() throws IOException, InterruptedException {
+        if (readPos == readLimit) {
+            int n = in.read(readBuffer);
+            if (n == -1) {
+                return false;
+            }
+            byteLimiter.take(n);
+            readPos = 0;
+            readLimit = n;
+        }
+        return true;
+    }
+
+    // scans the next part of the current frame, which is then in readBuffer[partStart..partEnd); returns true if the frame is complete
+    protected boolean nextPart() throws IOException, InterruptedException {
+        if (!fill()) {
+            eof = true;
+            partStart = partEnd = 0;
+            return true;
+        }
+        byte separator = (byte) router.getSeparator();
+        partStart = readPos;
+        while (readPos < readLimit && readBuffer[readPos] != separator) {
+            readPos++;
+        }
+        partEnd = readPos;
+        if (readPos < readLimit) {
+            readPos++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isCutThroughCandidate(ByteArrayOutputStream b) {
+        int threshold = router.getConfig().cutThroughThreshold;
+        // a throttled sender would sleep while holding all its recipients
+        return DclareRouter.SHARE_TO_ALL && 0 < threshold && threshold <= b.size() && !byteLimiter.isLimited() && !router.hasMetaData(b.toByteArray());
+    }
+
     @Override
-    protected byte[] waitForWork() {
+    protected byte[] waitForWork() throws InterruptedException {
         try {
-            ByteArrayOutputStream b = new ByteArrayOutputStream();
-            int c;
-            while ((c = in.read()) != router.getSeparator() && c != -1) {
-                b.write((byte) c);
-            }
-            if (c == -1 && b.size() == 0) {
+            ByteArrayOutputStream b         = new ByteArrayOutputStream();
+            boolean               undecided = true;
+            boolean               complete;
+            cutThrough = false;
+            trace = null;
+            do {
+                complete = nextPart();
+                if (b.size() == 0 && partStart < partEnd) {
+                    trace = router.getTracer().arrived(this);
+                }
+                b.write(readBuffer, partStart, partEnd - partStart);
+                if (!complete && undecided && router.getConfig().cutThroughThreshold <= b.size()) {
+                    undecided = false;
+                    if (isCutThroughCandidate(b)) {
+                        // the rest of the frame is streamed to the recipients by execute()
+                        cutThrough = true;
+                        trace = null;
+                        frameLimiter.take(1);
+                        return b.toByteArray();
+                    }
+                }
+            } while (!complete);
+            if (eof && b.size() == 0) {
                 router.verbose("reader-" + sock.getRemoteSocketAddress() + ": detected EOF");
                 return null;
             }
-            return router.filterMetaData(this, b.toByteArray());
-        } catch (SocketException e) {
-            if (e.getMessage().equals("Socket closed") || e.getMessage().contains("Connection reset")) {
-                router.verbose("reader-" + sock.getRemoteSocketAddress() + ": socket closed");
-            } else {
-                DclareRouter.log("reader-" + sock.getRemoteSocketAddress() + ": unexpected exception: " + e);
+            frameLimiter.take(1);
+            if (trace != null) {
+                trace.read(b.size());
+            }
+            byte[] frame = b.toByteArray();
+            router.capture(this, frame);
+            byte[] filtered = router.filterMetaData(this, frame);
+            if (trace != null) {
+                trace.filtered();
             }
+            return filtered;
         } catch (IOException e) {
-            DclareRouter.log("reader-" + sock.getRemoteSocketAddress() + ": problem reading: " + e);
+            readProblem(e);
         }
         return null;
     }
 
+    protected void readProblem(IOException e) {
+        if (e instanceof SocketException && (e.getMessage().equals("Socket closed") || e.getMessage().contains("Connection reset"))) {
+            router.verbose("reader-" + sock.getRemoteSocketAddress() + ": socket closed");
+        } else if (e instanceof SocketException) {
+            DclareRouter.log("reader-" + sock.getRemoteSocketAddress() + ": unexpected exception: " + e);
+        } else {
+            DclareRouter.log("reader-" + sock.getRemoteSocketAddress() + ": problem reading: " + e);
+        }
+    }
+
     @Override
-    protected void execute(byte[] bytes) {
+    protected void execute(byte[] bytes) throws InterruptedException {
         if (bytes == null) {
             router.verbose("reader-" + sock.getRemoteSocketAddress() + ": client disconnected");
             close();
+        } else if (cutThrough) {
+            // no relay slot: streaming goes at the pace of the sender's network, which must not hold up the other senders
+            relayCutThrough(bytes);
         } else if (isNonEmpty(bytes)) {
-            router.verbose("reader-" + sock.getRemoteSocketAddress() + ": got '" + new String(bytes, StandardCharsets.UTF_8) + "'");
+            relay(bytes);
+        }
+    }
 
-            Map<String, List<String>> changesPerModel = DclareRouter.SHARE_TO_ALL ? null : router.splitToChangesPerSharedModel(bytes);
+    private void relay(byte[] bytes) throws InterruptedException {
+        router.verbose("reader-" + sock.getRemoteSocketAddress() + ": got '" + new String(bytes, StandardCharsets.UTF_8) + "'");
 
-            router.getClientList(this).forEach(ci -> {
-                SocketReader sr = ci.socketReader;
-                router.verbose("reader-" + sock.getRemoteSocketAddress() + ": relaying to " + sr.sock.getRemoteSocketAddress() + " '" + new String(bytes, StandardCharsets.UTF_8) + "'");
-                try {
-                    byte[] change = bytes; //for testing
-                    if (!DclareRouter.SHARE_TO_ALL && changesPerModel != null) {
-                        change = ("{" + ci.sharedModels.stream().flatMap(m -> changesPerModel.getOrDefault(m, new ArrayList<>()).stream()).collect(Collectors.joining(", ")) + "}").getBytes();
+        List<ClientInfo> recipients = router.getClientList(this);
+        long[]           tickets    = new long[recipients.size()];
+        // the slot only covers queueing: a recipient that does not read must not hold it up while we wait to write to it
+        router.acquireRelaySlot();
+        try {
+            router.inNoOpOrder(() -> queueToAll(bytes, recipients, tickets));
+        } finally {
+            router.releaseRelaySlot();
+        }
+        // every frame of this sender is queued before the next one is read, so every recipient gets them in order
+        if (isParallelFanOut(recipients.size())) {
+            // the pool writes to the recipients at the same time, but leaves the ones it would have to wait for to this thread
+            router.getFanOutPool().submit(() -> IntStream.range(0, tickets.length).parallel().forEach(i -> {
+                if (0 < tickets[i] && drainTo(recipients.get(i).socketReader, tickets[i], false)) {
+                    tickets[i] = 0;
+                }
+            })).join();
+        }
+        for (int i = 0; i < tickets.length; i++) {
+            if (0 < tickets[i]) {
+                drainTo(recipients.get(i).socketReader, tickets[i], true);
+            }
+        }
+    }
+
+    // returns false when it had to leave the outbox to a caller that may wait
+    private boolean drainTo(SocketReader sr, long ticket, boolean wait) {
+        try {
+            if (wait) {
+                sr.outbox.drain(ticket);
+            } else {
+                return sr.outbox.tryDrain(ticket);
+            }
+        } catch (IOException e) {
+            DclareRouter.log("reader-" + sock.getRemoteSocketAddress() + ": relaying to " + sr.sock.getRemoteSocketAddress() + " failed: " + e.getMessage());
+            sr.close();
+        }
+        return true;
+    }
+
+    private boolean isParallelFanOut(int numRecipients) {
+        int threshold = router.getConfig().parallelFanOutThreshold;
+        return 0 < threshold && threshold <= numRecipients;
+    }
+
+    private void queueToAll(byte[] bytes, List<ClientInfo> recipients, long[] tickets) {
+        Map<String, List<String>> changesPerModel = DclareRouter.SHARE_TO_ALL ? null : router.splitToChangesPerSharedModel(bytes);
+        if (trace != null) {
+            trace.split();
+        }
+
+        if (isParallelFanOut(recipients.size())) {
+            router.getFanOutPool().submit(() -> IntStream.range(0, tickets.length).parallel().forEach(i -> tickets[i] = queueTo(recipients.get(i), bytes, changesPerModel))).join();
+        } else {
+            for (int i = 0; i < tickets.length; i++) {
+                tickets[i] = queueTo(recipients.get(i), bytes, changesPerModel);
+            }
+        }
+    }
+
+    private long queueTo(ClientInfo ci, byte[] bytes, Map<String, List<String>> changesPerModel) {
+        SocketReader sr = ci.socketReader;
+        router.verbose("reader-" + sock.getRemoteSocketAddress() + ": relaying to " + sr.sock.getRemoteSocketAddress() + " '" + new String(bytes, StandardCharsets.UTF_8) + "'");
+        byte[]      change = bytes; //for testing
+        Set<String> models = null;
+        if (!DclareRouter.SHARE_TO_ALL && changesPerModel != null) {
+            models = ci.sharedModels.stream().filter(changesPerModel::containsKey).collect(Collectors.toSet());
+            change = ("{" + models.stream().flatMap(m -> changesPerModel.get(m).stream()).collect(Collectors.joining(", ")) + "}").getBytes();
+        }
+        return isNonEmpty(change) ? sr.outbox.queue(change, models, trace) : 0;
+    }
+
+    private void relayCutThrough(byte[] head) throws InterruptedException {
+        router.verbose("reader-" + sock.getRemoteSocketAddress() + ": streaming frame of more than " + head.length + " bytes");
+        // lock in a fixed order so that two streaming senders can never deadlock on each other's recipients
+        List<SocketReader> recipients = router.getClientList(this).stream().map(ci -> ci.socketReader).sorted(Comparator.comparingInt(sr -> sr.nr)).toList();
+        List<SocketReader> failed     = new ArrayList<>();
+        recipients.forEach(sr -> sr.outbox.lockForStreaming());
+        try {
+            for (SocketReader sr : recipients) {
+                sr.writeStart();
+            }
+            relayPart(recipients, failed, head, 0, head.length);
+            InterruptedException interrupted = null;
+            try {
+                boolean complete;
+                do {
+                    complete = nextPart();
+                    relayPart(recipients, failed, readBuffer, partStart, partEnd);
+                } while (!complete);
+            } catch (IOException e) {
+                // the recipients already got part of the frame, terminate it like a frame cut short by EOF
+                readProblem(e);
+            } catch (InterruptedException e) {
+                interrupted = e;
+            }
+            for (SocketReader sr : recipients) {
+                if (!failed.contains(sr)) {
+                    try {
+                        sr.writeEnd();
+                    } catch (IOException e) {
+                        relayFailed(sr, e, failed);
                     }
-                    if (isNonEmpty(change)) {
-                        sr.send(change);
+                }
+            }
+            if (interrupted != null) {
+                throw interrupted;
+            }
+        } finally {
+            // release all recipients before draining any: draining a full outbox blocks, which must not happen while holding the others
+            long[] tickets = recipients.stream().mapToLong(sr -> sr.outbox.unlockAfterStreaming()).toArray();
+            for (int i = 0; i < tickets.length; i++) {
+                SocketReader sr = recipients.get(i);
+                if (!failed.contains(sr)) {
+                    try {
+                        sr.outbox.drain(tickets[i]);
+                    } catch (IOException e) {
+                        relayFailed(sr, e, failed);
                     }
+                }
+            }
+            failed.forEach(SocketReader::close);
+        }
+    }
+
+    private void relayPart(List<SocketReader> recipients, List<SocketReader> failed, byte[] bytes, int from, int to) {
+        for (SocketReader sr : recipients) {
+            if (!failed.contains(sr)) {
+                try {
+                    sr.writePart(bytes, from, to);
                 } catch (IOException e) {
-                    DclareRouter.log("reader-" + sock.getRemoteSocketAddress() + ": relaying to " + sr.sock.getRemoteSocketAddress() + " failed: " + e.getMessage());
-                    sr.close();
+                    relayFailed(sr, e, failed);
                 }
-            });
+            }
         }
     }
 
-    private void send(byte[] bytes) throws IOException {
-        synchronized (DclareRouter.class) {
-            out.write(bytes);
-            out.write(router.getSeparator());
-            out.flush();
+    private void relayFailed(SocketReader sr, IOException e, List<SocketReader> failed) {
+        DclareRouter.log("reader-" + sock.getRemoteSocketAddress() + ": relaying to " + sr.sock.getRemoteSocketAddress() + " failed: " + e.getMessage());
+        if (!failed.contains(sr)) {
+            failed.add(sr);
         }
     }
 
+    // the write methods are only called by the thread that holds the write lock of this reader's outbox
+
+    protected void write(byte[] bytes) throws IOException {
+        out.write(bytes);
+        writeEnd();
+    }
+
+    // a frame written in parts: writeStart(), writePart()..., writeEnd()
+    protected void writeStart() {
+    }
+
+    protected void writePart(byte[] bytes, int from, int to) throws IOException {
+        out.write(bytes, from, to - from);
+    }
+
+    protected void writeEnd() throws IOException {
+        out.write(router.getSeparator());
+        out.flush();
+    }
+
     @Override
     public void close() {
         super.close();
         interrupt();
+        outbox.clear();
         try {
             sock.close();
         } catch (IOException e) {
@@ -0,0 +1,85 @@
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+//  (C) Copyright 2018-2026 Modeling Value Group B.V. (http://modelingvalue.org)                                         ~
+//                                                                                                                       ~
+//  Licensed under the GNU Lesser General Public License v3.0 (the 'License'). You may not use this file except in       ~
+//  compliance with the License. You may obtain a copy of the License at: https://choosealicense.com/licenses/lgpl-3.0   ~
+//  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on  ~
+//  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the   ~
+//  specific language governing permissions and limitations under the License.                                           ~
+//                                                                                                                       ~
+//  Maintainers:                                                                                                         ~
+//      Wim Bast, Tom Brus                                                                                               ~
+//                                                                                                                       ~
+//  Contributors:                                                                                                        ~
+//      Ronald Krijgsheld ✝, Arjan Kok, Carel Bast                                                                       ~
+// --------------------------------------------------------------------------------------------------------------------- ~
+//  In Memory of Ronald Krijgsheld, 1972 - 2023                                                                          ~
+//      Ronald was suddenly and unexpectedly taken from us. He was not only our long-term colleague and team member      ~
+//      but also our friend. "He will live on in many of the lines of code you see below."                               ~
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+package org.modelingvalue.syncproxy;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket that limits the rate at which one client may push data into the router. Taking more tokens than
+ * available puts the bucket in debt and makes the caller sleep until the debt is paid off, which in turn stops the
+ * reading of the client's socket so that TCP pushes back on the client.
+ */
+public class TokenBucket {
+    private final double rate;
+    private final double capacity;
+    private       double tokens;
+    private       long   lastRefill = System.nanoTime();
+    private       long   taken;
+    private       long   throttled;
+    private       long   throttledNanos;
+
+    public TokenBucket(double rate, double burstSeconds) {
+        this.rate     = rate;
+        this.capacity = Math.max(1.0, rate * burstSeconds);
+        this.tokens   = capacity;
+    }
+
+    public boolean isLimited() {
+        return 0 < rate;
+    }
+
+    void take(long n) throws InterruptedException {
+        long sleepNanos;
+        synchronized (this) {
+            taken += n;
+            if (!isLimited()) {
+                return;
+            }
+            long now = System.nanoTime();
+            tokens     = Math.min(capacity, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+            tokens -= n;
+            if (0 <= tokens) {
+                return;
+            }
+            sleepNanos = (long) (-tokens * 1e9 / rate);
+            throttled++;
+            throttledNanos += sleepNanos;
+        }
+        TimeUnit.NANOSECONDS.sleep(sleepNanos);
+    }
+
+    public synchronized long getTaken() {
+        return taken;
+    }
+
+    public synchronized long getThrottled() {
+        return throttled;
+    }
+
+    public synchronized long getThrottledNanos() {
+        return throttledNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return (isLimited() ? rate + "/s" : "unlimited") + " taken=" + taken + " throttled=" + throttled + "x/" + TimeUnit.NANOSECONDS.toMillis(throttledNanos) + "ms";
+    }
+}
@@ -0,0 +1,152 @@
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+//  (C) Copyright 2018-2026 Modeling Value Group B.V. (http://modelingvalue.org)                                         ~
+//                                                                                                                       ~
+//  Licensed under the GNU Lesser General Public License v3.0 (the 'License'). You may not use this file except in       ~
+//  compliance with the License. You may obtain a copy of the License at: https://choosealicense.com/licenses/lgpl-3.0   ~
+//  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on  ~
+//  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the   ~
+//  specific language governing permissions and limitations under the License.                                           ~
+//                                                                                                                       ~
+//  Maintainers:                                                                                                         ~
+//      Wim Bast, Tom Brus                                                                                               ~
+//                                                                                                                       ~
+//  Contributors:                                                                                                        ~
+//      Ronald Krijgsheld ✝, Arjan Kok, Carel Bast                                                                       ~
+// --------------------------------------------------------------------------------------------------------------------- ~
+//  In Memory of Ronald Krijgsheld, 1972 - 2023                                                                          ~
+//      Ronald was suddenly and unexpectedly taken from us. He was not only our long-term colleague and team member      ~
+//      but also our friend. "He will live on in many of the lines of code you see below."                               ~
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+package org.modelingvalue.syncproxy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Records the frames that arrive at a router, with their arrival time and the connection they came from, so that
+ * the traffic can be replayed later by {@link TrafficReplay}.
+ * <p>
+ * The file starts with a magic number and the separator; every frame follows as the nanoseconds since the previous
+ * frame, the connection number and the length, all as variable length integers, followed by the bytes of the frame.
+ */
+public class TrafficCapture implements Closeable {
+    private static final int MAGIC = 0x44434150; // "DCAP"
+
+    private final Path             file;
+    private final DataOutputStream out;
+    private       long             last = System.nanoTime();
+    private       boolean          failed;
+
+    public record Frame(long offsetNanos, int connection, byte[] bytes) {
+    }
+
+    public TrafficCapture(Path file, char separator) throws IOException {
+        this.file = file;
+        this.out  = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+        out.writeInt(MAGIC);
+        out.writeByte(separator);
+    }
+
+    public synchronized void record(int connection, byte[] frame) {
+        if (!failed) {
+            try {
+                long now = System.nanoTime();
+                writeVarLong(now - last);
+                writeVarLong(connection);
+                writeVarLong(frame.length);
+                out.write(frame);
+                last = now;
+            } catch (IOException e) {
+                failed = true;
+                DclareRouter.log("capturing to " + file + " failed, capture stopped: " + e.getMessage());
+            }
+        }
+    }
+
+    private void writeVarLong(long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            DclareRouter.log("error closing capture file " + file + ": " + e.getMessage());
+        }
+    }
+
+    public static class Reader implements Closeable {
+        private final DataInputStream in;
+        private final char            separator;
+        private       long            offset;
+
+        public Reader(Path file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+            if (in.readInt() != MAGIC) {
+                in.close();
+                throw new IOException(file + " is not a capture file");
+            }
+            separator = (char) in.readUnsignedByte();
+        }
+
+        public char getSeparator() {
+            return separator;
+        }
+
+        // returns null at the end of the capture
+        public Frame next() throws IOException {
+            long delta;
+            try {
+                delta = readVarLong();
+            } catch (EOFException e) {
+                return null;
+            }
+            offset += delta;
+            int    connection = (int) readVarLong();
+            byte[] bytes      = new byte[(int) readVarLong()];
+            in.readFully(bytes);
+            return new Frame(offset, connection, bytes);
+        }
+
+        // returns the connection of the next frame and skips its bytes, or -1 at the end of the capture
+        int skipToNextConnection() throws IOException {
+            try {
+                offset += readVarLong();
+            } catch (EOFException e) {
+                return -1;
+            }
+            int connection = (int) readVarLong();
+            in.skipNBytes(readVarLong());
+            return connection;
+        }
+
+        private long readVarLong() throws IOException {
+            long v     = 0;
+            int  shift = 0;
+            int  b;
+            do {
+                b = in.readUnsignedByte();
+                v |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return v;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
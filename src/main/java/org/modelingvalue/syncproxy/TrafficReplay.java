@@ -0,0 +1,182 @@
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+//  (C) Copyright 2018-2026 Modeling Value Group B.V. (http://modelingvalue.org)                                         ~
+//                                                                                                                       ~
+//  Licensed under the GNU Lesser General Public License v3.0 (the 'License'). You may not use this file except in       ~
+//  compliance with the License. You may obtain a copy of the License at: https://choosealicense.com/licenses/lgpl-3.0   ~
+//  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on  ~
+//  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the   ~
+//  specific language governing permissions and limitations under the License.                                           ~
+//                                                                                                                       ~
+//  Maintainers:                                                                                                         ~
+//      Wim Bast, Tom Brus                                                                                               ~
+//                                                                                                                       ~
+//  Contributors:                                                                                                        ~
+//      Ronald Krijgsheld ✝, Arjan Kok, Carel Bast                                                                       ~
+// --------------------------------------------------------------------------------------------------------------------- ~
+//  In Memory of Ronald Krijgsheld, 1972 - 2023                                                                          ~
+//      Ronald was suddenly and unexpectedly taken from us. He was not only our long-term colleague and team member      ~
+//      but also our friend. "He will live on in many of the lines of code you see below."                               ~
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+package org.modelingvalue.syncproxy;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes a capture made with {@link RouterConfig#captureFile} through a local router, either with the original timing
+ * or as fast as possible, and reports the throughput, the end-to-end latency and the latency per routing stage.
+ * <p>
+ * Throughput is measured from the first send until the last frame is received. End-to-end latency runs from handing
+ * a frame to the sending client until a recipient got it; every recipient matches the frames it receives to the frames
+ * sent to it by their content, identical frames in the order they were sent. Frames that the router rewrites (split per
+ * model) are not matched, their send times are kept until the end of the replay.
+ */
+public class TrafficReplay {
+    private static final long QUIET_MILLIS   = 500;
+    private static final long TIMEOUT_MILLIS = 60_000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        boolean maxSpeed = args.length == 2 && args[0].equals("--max-speed");
+        if (args.length != (maxSpeed ? 2 : 1)) {
+            throw new Error("usage: $0 [--max-speed] <capture-file>");
+        }
+        replay(Path.of(args[args.length - 1]), maxSpeed).print(System.out);
+    }
+
+    public record Result(long framesSent, long bytesSent, long framesReceived, long bytesReceived, long routeNanos, LatencyHistogram endToEnd, FrameTracer tracer) {
+        public void print(PrintStream out) {
+            double seconds = Math.max(1, routeNanos) / 1e9;
+            out.printf(Locale.ROOT, "sent     %d frames, %d bytes%n", framesSent, bytesSent);
+            out.printf(Locale.ROOT, "received %d frames, %d bytes in %.3f s (%.1f frames/s, %.3f MB/s)%n", framesReceived, bytesReceived, seconds, framesReceived / seconds, bytesReceived / seconds / 1e6);
+            out.printf(Locale.ROOT, "end-to-end latency: %s%n", endToEnd);
+            tracer.printReport(out);
+        }
+    }
+
+    public static Result replay(Path file, boolean maxSpeed) throws IOException, InterruptedException {
+        RouterConfig config = new RouterConfig();
+        config.traceSampleRate = 1;
+        AtomicLong                           framesReceived = new AtomicLong();
+        AtomicLong                           bytesReceived  = new AtomicLong();
+        AtomicLong                           lastReceived   = new AtomicLong();
+        Map<Integer, Map<Long, Deque<Long>>> sentAt         = new HashMap<>(); // per recipient the send times per frame hash
+        LatencyHistogram                     endToEnd       = new LatencyHistogram();
+        Map<Integer, DclareRouterClient>     clients        = new HashMap<>();
+        long                                 framesSent     = 0;
+        long                                 bytesSent      = 0;
+        try (TrafficCapture.Reader reader = new TrafficCapture.Reader(file); TrafficCapture.Reader scanner = new TrafficCapture.Reader(file)) {
+            DclareRouter router = new DclareRouter(0, reader.getSeparator(), false, config);
+            try {
+                // all connections are made up front, otherwise the first frames would miss the clients that connect later
+                for (int c = scanner.skipToNextConnection(); 0 <= c; c = scanner.skipToNextConnection()) {
+                    if (!clients.containsKey(c)) {
+                        Map<Long, Deque<Long>> inFlight = new HashMap<>();
+                        sentAt.put(c, inFlight);
+                        clients.put(c, new DclareRouterClient("localhost", router.getPort(), reader.getSeparator(), b -> {
+                            long now  = System.nanoTime();
+                            Long sent = received(inFlight, hash(b));
+                            if (sent != null) {
+                                endToEnd.record(now - sent);
+                            }
+                            framesReceived.incrementAndGet();
+                            bytesReceived.addAndGet(b.remaining());
+                            lastReceived.set(now);
+                        }));
+                    }
+                }
+                waitForClients(router, clients.size());
+                long                 t0    = System.nanoTime();
+                long                 first = -1;
+                TrafficCapture.Frame f;
+                while ((f = reader.next()) != null) {
+                    if (first < 0) {
+                        first = f.offsetNanos();
+                    }
+                    if (!maxSpeed) {
+                        long due = t0 + f.offsetNanos() - first;
+                        TimeUnit.NANOSECONDS.sleep(due - System.nanoTime());
+                    }
+                    DclareRouterClient client = clients.get(f.connection());
+                    long hash = hash(ByteBuffer.wrap(f.bytes()));
+                    long now  = System.nanoTime();
+                    for (Map.Entry<Integer, Map<Long, Deque<Long>>> e : sentAt.entrySet()) {
+                        if (e.getKey() != f.connection()) {
+                            sent(e.getValue(), hash, now);
+                        }
+                    }
+                    while (!client.send(f.bytes())) {
+                        // the router is behind, wait until the client has written some of what it holds
+                        Thread.sleep(1);
+                    }
+                    framesSent++;
+                    bytesSent += f.bytes().length;
+                }
+                waitUntilQuiet(framesReceived);
+                // the quiet period at the end is not part of the measurement
+                long routeNanos = Math.max(0, lastReceived.get() - t0);
+                return new Result(framesSent, bytesSent, framesReceived.get(), bytesReceived.get(), routeNanos, endToEnd, router.getTracer());
+            } finally {
+                clients.values().forEach(DclareRouterClient::close);
+                router.close();
+            }
+        }
+    }
+
+    private static void sent(Map<Long, Deque<Long>> inFlight, long hash, long nanos) {
+        synchronized (inFlight) {
+            inFlight.computeIfAbsent(hash, h -> new ArrayDeque<>()).addLast(nanos);
+        }
+    }
+
+    // returns the send time of the oldest unmatched frame with this hash, and forgets it
+    private static Long received(Map<Long, Deque<Long>> inFlight, long hash) {
+        synchronized (inFlight) {
+            Deque<Long> times = inFlight.get(hash);
+            if (times == null) {
+                return null;
+            }
+            Long sent = times.pollFirst();
+            if (times.isEmpty()) {
+                inFlight.remove(hash);
+            }
+            return sent;
+        }
+    }
+
+    // FNV-1a, 64 bits
+    private static long hash(ByteBuffer b) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = b.position(); i < b.limit(); i++) {
+            h = (h ^ (b.get(i) & 0xff)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static void waitForClients(DclareRouter router, int numClients) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (router.getNumClients() < numClients) {
+            if (deadline < System.currentTimeMillis()) {
+                throw new Error("only " + router.getNumClients() + " of the " + numClients + " replay clients could connect");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private static void waitUntilQuiet(AtomicLong received) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        long seen     = -1;
+        while (seen != received.get() && System.currentTimeMillis() < deadline) {
+            seen = received.get();
+            Thread.sleep(QUIET_MILLIS);
+        }
+    }
+}
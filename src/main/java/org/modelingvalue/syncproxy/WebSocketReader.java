@@ -0,0 +1,355 @@
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+//  (C) Copyright 2018-2026 Modeling Value Group B.V. (http://modelingvalue.org)                                         ~
+//                                                                                                                       ~
+//  Licensed under the GNU Lesser General Public License v3.0 (the 'License'). You may not use this file except in       ~
+//  compliance with the License. You may obtain a copy of the License at: https://choosealicense.com/licenses/lgpl-3.0   ~
+//  Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on  ~
+//  an 'AS IS' BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the   ~
+//  specific language governing permissions and limitations under the License.                                           ~
+//                                                                                                                       ~
+//  Maintainers:                                                                                                         ~
+//      Wim Bast, Tom Brus                                                                                               ~
+//                                                                                                                       ~
+//  Contributors:                                                                                                        ~
+//      Ronald Krijgsheld ✝, Arjan Kok, Carel Bast                                                                       ~
+// --------------------------------------------------------------------------------------------------------------------- ~
+//  In Memory of Ronald Krijgsheld, 1972 - 2023                                                                          ~
+//      Ronald was suddenly and unexpectedly taken from us. He was not only our long-term colleague and team member      ~
+//      but also our friend. "He will live on in many of the lines of code you see below."                               ~
+//~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+package org.modelingvalue.syncproxy;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * A client that connected over WebSocket (RFC 6455) instead of raw TCP. Every WebSocket message is one router frame:
+ * incoming messages are unmasked in the read buffer and routed like frames from a TCP client, and outgoing frames
+ * are written as one message without copying the payload. Frames streamed cut-through become fragmented messages.
+ * <p>
+ * Since TCP clients use separator framing, messages must not contain the separator: a client that sends one is
+ * disconnected.
+ */
+class WebSocketReader extends SocketReader {
+    private static final String GUID               = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int    HANDSHAKE_TIMEOUT  = 10_000;
+    private static final int    MAX_HEADER_LINE    = 8 * 1024;
+    private static final int    OP_CONTINUATION    = 0x0;
+    private static final int    OP_TEXT            = 0x1;
+    private static final int    OP_BINARY          = 0x2;
+    private static final int    OP_CLOSE           = 0x8;
+    private static final int    OP_PING            = 0x9;
+    private static final int    OP_PONG            = 0xA;
+    private static final int    FIN                = 0x80;
+    private static final int    MAX_CONTROL_LENGTH = 125;
+    private static final byte[] INVALID_PAYLOAD    = {0x03, (byte) 0xEF}; // close status 1007
+
+    private final int     dataOpcode;
+    private final byte[]  mask = new byte[4];
+    private       long    payloadRemaining;
+    private       int     maskOffset;
+    private       boolean masked;
+    private       boolean fin;
+    private       boolean firstPartWritten;
+    private       byte[]  pendingPong;
+    private       boolean rejected;
+
+    WebSocketReader(DclareRouter router, Socket sock, int i) throws IOException {
+        super(router, sock, i, "SyncProxyWebSocketReader-" + i);
+        dataOpcode = router.getConfig().webSocketBinary ? OP_BINARY : OP_TEXT;
+    }
+
+    @Override
+    public void run() {
+        if (handshake() && router.register(this)) {
+            super.run();
+        } else {
+            close();
+        }
+    }
+
+    private boolean handshake() {
+        try {
+            sock.setSoTimeout(HANDSHAKE_TIMEOUT);
+            String requestLine = readLine();
+            String key         = null;
+            boolean upgrade    = false;
+            for (String line = readLine(); line != null && !line.isEmpty(); line = readLine()) {
+                int colon = line.indexOf(':');
+                if (0 < colon) {
+                    String name  = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                    String value = line.substring(colon + 1).trim();
+                    if (name.equals("sec-websocket-key")) {
+                        key = value;
+                    } else if (name.equals("upgrade")) {
+                        upgrade = value.equalsIgnoreCase("websocket");
+                    }
+                }
+            }
+            if (requestLine == null || !requestLine.startsWith("GET ") || key == null || !upgrade) {
+                router.verbose("websocket-" + sock.getRemoteSocketAddress() + ": not a websocket upgrade request: " + requestLine);
+                out.write("HTTP/1.1 400 Bad Request\r\nConnection: close\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                return false;
+            }
+            out.write(("HTTP/1.1 101 Switching Protocols\r\n" + //
+                    "Upgrade: websocket\r\n" + //
+                    "Connection: Upgrade\r\n" + //
+                    "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            sock.setSoTimeout(0);
+            return true;
+        } catch (SocketTimeoutException e) {
+            router.verbose("websocket-" + sock.getRemoteSocketAddress() + ": handshake timed out");
+        } catch (IOException e) {
+            readProblem(e);
+        } catch (InterruptedException e) {
+            router.verbose("websocket-" + sock.getRemoteSocketAddress() + ": handshake interrupted");
+        }
+        return false;
+    }
+
+    static String acceptKey(String key) {
+        try {
+            byte[] sha1 = MessageDigest.getInstance("SHA-1").digest((key + GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(sha1);
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error("SHA-1 is required for websockets", e);
+        }
+    }
+
+    private String readLine() throws IOException, InterruptedException {
+        StringBuilder b = new StringBuilder();
+        for (int c = readByte(); c != '\n'; c = readByte()) {
+            if (c == -1) {
+                return null;
+            }
+            if (MAX_HEADER_LINE < b.length()) {
+                throw new IOException("header line too long");
+            }
+            if (c != '\r') {
+                b.append((char) c);
+            }
+        }
+        return b.toString();
+    }
+
+    private int readByte() throws IOException, InterruptedException {
+        return fill() ? readBuffer[readPos++] & 0xFF : -1;
+    }
+
+    private int readByteNoEOF() throws IOException, InterruptedException {
+        int b = readByte();
+        if (b == -1) {
+            throw new EOF();
+        }
+        return b;
+    }
+
+    // the payload of data frames is unmasked in place and handed out part by part; control frames are handled here
+    @Override
+    protected boolean nextPart() throws IOException, InterruptedException {
+        try {
+            while (payloadRemaining == 0) {
+                if (readHeader()) {
+                    if (payloadRemaining == 0 && fin) {
+                        partStart = partEnd = readPos;
+                        return true;
+                    }
+                }
+            }
+            if (!fill()) {
+                throw new EOF();
+            }
+            int  n         = (int) Math.min(payloadRemaining, readLimit - readPos);
+            byte separator = (byte) router.getSeparator();
+            for (int i = readPos; i < readPos + n; i++) {
+                if (masked) {
+                    readBuffer[i] ^= mask[maskOffset++ & 3];
+                }
+                if (readBuffer[i] == separator) {
+                    rejectMessage();
+                }
+            }
+            partStart = readPos;
+            partEnd   = readPos + n;
+            readPos += n;
+            payloadRemaining -= n;
+            return payloadRemaining == 0 && fin;
+        } catch (EOF e) {
+            eof = true;
+            partStart = partEnd = 0;
+            return true;
+        }
+    }
+
+    // returns true if a data frame header was read, false if a control frame was read and handled
+    private boolean readHeader() throws IOException, InterruptedException {
+        int b0     = readByteNoEOF();
+        int b1     = readByteNoEOF();
+        int opcode = b0 & 0x0F;
+        long len   = b1 & 0x7F;
+        if (len == 126) {
+            len = (long) readByteNoEOF() << 8 | readByteNoEOF();
+        } else if (len == 127) {
+            len = 0;
+            for (int i = 0; i < 8; i++) {
+                len = len << 8 | readByteNoEOF();
+            }
+        }
+        masked = (b1 & 0x80) != 0;
+        if (masked) {
+            for (int i = 0; i < 4; i++) {
+                mask[i] = (byte) readByteNoEOF();
+            }
+        }
+        maskOffset = 0;
+        if ((opcode & 0x8) != 0) {
+            if (MAX_CONTROL_LENGTH < len) {
+                throw new IOException("control frame too long: " + len);
+            }
+            byte[] payload = new byte[(int) len];
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] = (byte) (readByteNoEOF() ^ (masked ? mask[i & 3] : 0));
+            }
+            control(opcode, payload);
+            return false;
+        }
+        if (opcode != OP_CONTINUATION && opcode != OP_TEXT && opcode != OP_BINARY) {
+            throw new IOException("unknown websocket opcode " + opcode);
+        }
+        fin = (b0 & FIN) != 0;
+        payloadRemaining = len;
+        return true;
+    }
+
+    // the message would arrive at TCP clients as two broken frames; the part read so far of a streamed frame is already relayed.
+    // the client is closed by execute(), once a streaming sender has released the outboxes of its recipients
+    private void rejectMessage() throws IOException {
+        rejected = true;
+        throw new IOException("message contains the separator");
+    }
+
+    private void control(int opcode, byte[] payload) throws IOException {
+        switch (opcode) {
+        // while streaming a frame we hold the write locks of other clients: waiting for our own lock could deadlock
+        case OP_PING -> {
+            if (isCutThrough()) {
+                pendingPong = payload;
+            } else {
+                writeControl(OP_PONG, payload);
+            }
+        }
+        case OP_CLOSE -> {
+            router.verbose("websocket-" + sock.getRemoteSocketAddress() + ": close received");
+            if (!isCutThrough()) {
+                writeControl(OP_CLOSE, payload.length < 2 ? new byte[0] : new byte[]{payload[0], payload[1]});
+            }
+            throw new EOF();
+        }
+        default -> {
+            // unsolicited pongs are ignored
+        }
+        }
+    }
+
+    @Override
+    protected void execute(byte[] bytes) throws InterruptedException {
+        if (!rejected) {
+            // a streamed message is read, and may be rejected, while it is relayed
+            super.execute(bytes);
+        }
+        if (rejected) {
+            router.verbose("websocket-" + sock.getRemoteSocketAddress() + ": message rejected");
+            try {
+                writeControl(OP_CLOSE, INVALID_PAYLOAD);
+            } catch (IOException e) {
+                readProblem(e);
+            }
+            close();
+        } else if (pendingPong != null) {
+            byte[] payload = pendingPong;
+            pendingPong = null;
+            try {
+                writeControl(OP_PONG, payload);
+            } catch (IOException e) {
+                readProblem(e);
+            }
+        }
+    }
+
+    private void writeControl(int opcode, byte[] payload) throws IOException {
+        long ticket;
+        outbox.lockForStreaming();
+        try {
+            writeHeader(FIN | opcode, payload.length);
+            out.write(payload);
+            out.flush();
+        } finally {
+            ticket = outbox.unlockAfterStreaming();
+        }
+        outbox.drain(ticket);
+    }
+
+    private void writeHeader(int b0, long len) throws IOException {
+        byte[] header;
+        if (len <= 125) {
+            header = new byte[]{(byte) b0, (byte) len};
+        } else if (len <= 0xFFFF) {
+            header = new byte[]{(byte) b0, 126, (byte) (len >>> 8), (byte) len};
+        } else {
+            header = new byte[10];
+            header[0] = (byte) b0;
+            header[1] = 127;
+            for (int i = 0; i < 8; i++) {
+                header[9 - i] = (byte) (len >>> (8 * i));
+            }
+        }
+        out.write(header);
+    }
+
+    @Override
+    protected void write(byte[] bytes) throws IOException {
+        writeHeader(FIN | dataOpcode, bytes.length);
+        out.write(bytes);
+        out.flush();
+    }
+
+    @Override
+    protected void writeStart() {
+        firstPartWritten = false;
+    }
+
+    @Override
+    protected void writePart(byte[] bytes, int from, int to) throws IOException {
+        if (from < to) {
+            writeHeader(firstPartWritten ? OP_CONTINUATION : dataOpcode, to - from);
+            out.write(bytes, from, to - from);
+            firstPartWritten = true;
+        }
+    }
+
+    @Override
+    protected void writeEnd() throws IOException {
+        writeHeader(FIN | (firstPartWritten ? OP_CONTINUATION : dataOpcode), 0);
+        out.flush();
+    }
+
+    @Override
+    public String toString() {
+        return "WebSocketReader[" + sock + "]";
+    }
+
+    // thrown when the client ends the connection, possibly in the middle of a frame header
+    private static class EOF extends IOException {
+        EOF() {
+            super("end of stream");
+        }
+    }
+}
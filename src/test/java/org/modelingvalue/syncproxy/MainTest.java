@@ -25,23 +25,42 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SuppressWarnings("BusyWait")
 class MainTest {
@@ -164,6 +183,761 @@ class MainTest {
         assertExcessThreadsAfterAWhile(initialThreads, 0);
     }
 
+    @RepeatedTest(5)
+    void cutThrough() throws IOException, InterruptedException {
+        List<String> initialThreads = getCurrentThreadNames();
+        DclareRouter.SHARE_TO_ALL = true;
+
+        RouterConfig config = new RouterConfig();
+        config.chunkSize           = 1000;
+        config.cutThroughThreshold = 10_000;
+        DclareRouter main       = new DclareRouter(0, '\n', false, config);
+        int          actualPort = main.getPort();
+        TestClient   c0         = new TestClient(actualPort);
+        TestClient   c1         = new TestClient(actualPort);
+        TestClient   c2         = new TestClient(actualPort);
+
+        assertNumClientsAfterAWhile(main, 3);
+
+        String s0 = longRandomString();
+        String s1 = longRandomString();
+        c0.writeLine(s0);
+        c1.writeLine(s1);
+        c2.writeLine("small");
+        assertEquals(Set.of(s1, "small"), Set.of(c0.readLine(), c0.readLine()));
+        assertEquals(Set.of(s0, "small"), Set.of(c1.readLine(), c1.readLine()));
+        assertEquals(Set.of(s0, s1), Set.of(c2.readLine(), c2.readLine()));
+
+        assertExcessThreadsAfterAWhile(initialThreads, 7);
+        main.close();
+        c0.interrupt();
+        c1.interrupt();
+        c2.interrupt();
+        assertExcessThreadsAfterAWhile(initialThreads, 0);
+    }
+
+    @Test
+    void smallFramesOvertakeBulk() throws IOException, InterruptedException {
+        List<String> initialThreads = getCurrentThreadNames();
+        DclareRouter.SHARE_TO_ALL = false;
+
+        RouterConfig config = new RouterConfig();
+        config.smallFrameLimit = 100;
+        DclareRouter main       = new DclareRouter(0, '\n', false, config);
+        int          actualPort = main.getPort();
+        TestClient   c0         = new TestClient(actualPort);
+        TestClient   c1         = new TestClient(actualPort);
+
+        assertNumClientsAfterAWhile(main, 2);
+
+        c0.writeLine(DclareRouterClient.sharedModelsFrame("c0", List.of("DModel:r:m1", "DModel:r:m2")));
+        c1.writeLine(DclareRouterClient.sharedModelsFrame("c1", List.of("DModel:r:m1", "DModel:r:m2")));
+        assertSharedModelsAfterAWhile(main, 2);
+
+        // keep c1 busy so that everything sent to it is queued
+        Outbox busy = outboxOf(main, c1);
+        busy.lockForStreaming();
+        String bulk    = "{\"DNode:r:m1/n1\":{\"name\":\"" + "b".repeat(1000) + "\"}}";
+        String smallM2 = "{\"DNode:r:m2/n1\":{\"name\":\"c\"}}";
+        String smallM1 = "{\"DNode:r:m1/n2\":{\"name\":\"d\"}}";
+        c0.writeLine(bulk);
+        c0.writeLine(smallM2);
+        c0.writeLine(smallM1);
+        assertQueuedAfterAWhile(busy, 3);
+        busy.drain(busy.unlockAfterStreaming());
+
+        // the m2 frame overtakes the bulk frame, the m1 frame may not because the bulk frame also touches m1
+        assertEquals(smallM2, c1.readLine());
+        assertEquals(bulk, c1.readLine());
+        assertEquals(smallM1, c1.readLine());
+
+        assertExcessThreadsAfterAWhile(initialThreads, 5);
+        main.close();
+        c0.interrupt();
+        c1.interrupt();
+        assertExcessThreadsAfterAWhile(initialThreads, 0);
+    }
+
+    @Test
+    void smallFramesDoNotOvertakeWithoutModels() throws IOException, InterruptedException {
+        List<String> initialThreads = getCurrentThreadNames();
+        DclareRouter.SHARE_TO_ALL = true;
+
+        RouterConfig config = new RouterConfig();
+        config.smallFrameLimit = 100;
+        DclareRouter main       = new DclareRouter(0, '\n', false, config);
+        int          actualPort = main.getPort();
+        TestClient   c0         = new TestClient(actualPort);
+        TestClient   c1         = new TestClient(actualPort);
+
+        assertNumClientsAfterAWhile(main, 2);
+
+        Outbox busy = outboxOf(main, c1);
+        busy.lockForStreaming();
+        String bulk = "b".repeat(1000);
+        c0.writeLine(bulk);
+        c0.writeLine("small");
+        assertQueuedAfterAWhile(busy, 2);
+        busy.drain(busy.unlockAfterStreaming());
+
+        assertEquals(bulk, c1.readLine());
+        assertEquals("small", c1.readLine());
+
+        assertExcessThreadsAfterAWhile(initialThreads, 5);
+        main.close();
+        c0.interrupt();
+        c1.interrupt();
+        assertExcessThreadsAfterAWhile(initialThreads, 0);
+    }
+
+    @RepeatedTest(5)
+    void suppressNoOps() throws IOException, InterruptedException {
+        List<String> initialThreads = getCurrentThreadNames();
+        DclareRouter.SHARE_TO_ALL = false;
+
+        RouterConfig config = new RouterConfig();
+        config.suppressNoOps = true;
+        DclareRouter main       = new DclareRouter(0, '\n', false, config);
+        int          actualPort = main.getPort();
+        TestClient   c0         = new TestClient(actualPort);
+        TestClient   c1         = new TestClient(actualPort);
+
+        assertNumClientsAfterAWhile(main, 2);
+
+        c0.writeLine(DclareRouterClient.sharedModelsFrame("c0", List.of("DModel:r:m1")));
+        c1.writeLine(DclareRouterClient.sharedModelsFrame("c1", List.of("DModel:r:m1")));
+        assertSharedModelsAfterAWhile(main, 2);
+
+        c0.writeLine("{\"DNode:r:m1/n1\":{\"name\":\"a\"}}");
+        assertEquals("{\"DNode:r:m1/n1\":{\"name\":\"a\"}}", c1.readLine());
+
+        c0.writeLine("{\"DNode:r:m1/n1\":{\"name\":\"a\"}}");
+        c0.writeLine("{\"DNode:r:m1/n1\":{\"name\":\"a\"}, \"DNode:r:m1/n2\":{\"name\":\"b\"}}");
+        assertEquals("{\"DNode:r:m1/n2\":{\"name\":\"b\"}}", c1.readLine());
+        assertEquals(2, main.getSuppressedNoOps());
+
+        c1.writeLine("{\"DNode:r:m1/n1\":{\"name\":\"c\"}}");
+        assertEquals("{\"DNode:r:m1/n1\":{\"name\":\"c\"}}", c0.readLine());
+
+        assertExcessThreadsAfterAWhile(initialThreads, 5);
+        main.close();
+        c0.interrupt();
+        c1.interrupt();
+        assertExcessThreadsAfterAWhile(initialThreads, 0);
+    }
+
+    @Test
+    void noOpBudget() {
+        for (RouterConfig.Eviction eviction : RouterConfig.Eviction.values()) {
+            RouterConfig config = new RouterConfig();
+            config.noOpEviction = eviction;
+            config.noOpBudget   = 300; // room for two of the entries below, whatever their model
+            LastValueStore store = new LastValueStore(config);
+
+            assertFalse(store.isNoOp("DModel:r:m1", "DNode:r:m1/n1", "{\"name\":\"a\"}"));
+            assertFalse(store.isNoOp("DModel:r:m2", "DNode:r:m2/n1", "{\"name\":\"b\"}"));
+            assertTrue(store.isNoOp("DModel:r:m1", "DNode:r:m1/n1", "{\"name\":\"a\"}"));
+            assertFalse(store.isNoOp("DModel:r:m3", "DNode:r:m3/n1", "{\"name\":\"c\"}"));
+            assertTrue(store.getBytes() <= config.noOpBudget);
+
+            // LRU evicted m2 because m1 was used again, FIFO evicted m1 because it was stored first
+            assertEquals(eviction == RouterConfig.Eviction.LRU, store.isNoOp("DModel:r:m1", "DNode:r:m1/n1", "{\"name\":\"a\"}"));
+
+            store.forget("DModel:r:m3");
+            assertFalse(store.isNoOp("DModel:r:m3", "DNode:r:m3/n1", "{\"name\":\"c\"}"));
+        }
+    }
+
+    @Test
+    void rateLimited() throws IOException, InterruptedException {
+        List<String> initialThreads = getCurrentThreadNames();
+        DclareRouter.SHARE_TO_ALL = true;
+
+        RouterConfig config = new RouterConfig();
+        config.clientByteRate   = 20_000;
+        config.rateBurstSeconds = 0.1;
+        config.relaySlots       = 1;
+        DclareRouter main       = new DclareRouter(0, '\n', false, config);
+        int          actualPort = main.getPort();
+        TestClient   c0         = new TestClient(actualPort);
+        TestClient   c1         = new TestClient(actualPort);
+
+        assertNumClientsAfterAWhile(main, 2);
+
+        long t0 = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            String s = String.valueOf(i).repeat(1000);
+            c0.writeLine(s);
+            assertEquals(s, c1.readLine());
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+        assertTrue(300 <= elapsedMs, "10 kB at 20 kB/s with a 2 kB burst took only " + elapsedMs + " ms");
+        ClientInfo sender = main.getClientList(null).stream().filter(ci -> 0 < ci.getByteLimiter().getTaken()).findAny().orElseThrow();
+        assertEquals(10_010, sender.getByteLimiter().getTaken());
+        assertTrue(0 < sender.getByteLimiter().getThrottled());
+
+        assertExcessThreadsAfterAWhile(initialThreads, 5);
+        main.close();
+        c0.interrupt();
+        c1.interrupt();
+        assertExcessThreadsAfterAWhile(initialThreads, 0);
+    }
+
+    @Test
+    void relaySlotNotHeldWhileWriting() throws IOException, InterruptedException {
+        List<String> initialThreads = getCurrentThreadNames();
+        DclareRouter.SHARE_TO_ALL = false;
+
+        RouterConfig config = new RouterConfig();
+        config.relaySlots     = 1;
+        config.sendBufferSize = 16 * 1024;
+        DclareRouter main       = new DclareRouter(0, '\n', false, config);
+        int          actualPort = main.getPort();
+        TestClient   c0         = new TestClient(actualPort);
+        TestClient   c1         = new TestClient(actualPort);
+        TestClient   c2         = new TestClient(actualPort);
+        Socket       stuck      = new Socket();
+        stuck.setReceiveBufferSize(16 * 1024);
+        stuck.connect(new InetSocketAddress("localhost", actualPort));
+
+        assertNumClientsAfterAWhile(main, 4);
+
+        c0.writeLine(DclareRouterClient.sharedModelsFrame("c0", List.of("DModel:r:m1")));
+        c1.writeLine(DclareRouterClient.sharedModelsFrame("c1", List.of("DModel:r:m2")));
+        c2.writeLine(DclareRouterClient.sharedModelsFrame("c2", List.of("DModel:r:m2")));
+        stuck.getOutputStream().write((DclareRouterClient.sharedModelsFrame("stuck", List.of("DModel:r:m1")) + "\n").getBytes(StandardCharsets.UTF_8));
+        stuck.getOutputStream().flush();
+        assertSharedModelsAfterAWhile(main, 4);
+
+        // c0 keeps its slot only while queueing, not while it waits to write to a client that does not read
+        c0.writeLine("{\"DNode:r:m1/n1\":{\"name\":\"" + "b".repeat(5_000_000) + "\"}}");
+        Thread.sleep(500);
+        String small = "{\"DNode:r:m2/n1\":{\"name\":\"c\"}}";
+        long   t0    = System.nanoTime();
+        c1.writeLine(small);
+        assertEquals(small, c2.readLine());
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+        assertTrue(elapsedMs < 2000, "a small frame took " + elapsedMs + " ms behind a client that does not read");
+
+        assertExcessThreadsAfterAWhile(initialThreads, 8);
+        main.close();
+        stuck.close();
+        c0.interrupt();
+        c1.interrupt();
+        c2.interrupt();
+        assertExcessThreadsAfterAWhile(initialThreads, 0);
+    }
+
+    @Test
+    void parallelFanOut() throws IOException, InterruptedException {
+        List<String> initialThreads = getCurrentThreadNames();
+        DclareRouter.SHARE_TO_ALL = true;
+
+        RouterConfig config = new RouterConfig();
+        config.parallelFanOutThreshold = 2;
+        config.fanOutThreads           = 2;
+        DclareRouter     main       = new DclareRouter(0, '\n', false, config);
+        int              actualPort = main.getPort();
+        List<TestClient> clients    = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            clients.add(new TestClient(actualPort));
+        }
+
+        assertNumClientsAfterAWhile(main, 4);
+        assertExcessThreadsAfterAWhile(initialThreads, 9);
+
+        // every recipient gets the frames of one sender in the order they were sent
+        for (int i = 0; i < 200; i++) {
+            clients.get(0).writeLine("frame-" + i);
+        }
+        for (int i = 0; i < 200; i++) {
+            for (TestClient c : clients.subList(1, 4)) {
+                assertEquals("frame-" + i, c.readLine());
+            }
+        }
+
+        main.close();
+        clients.forEach(Thread::interrupt);
+        assertExcessThreadsAfterAWhile(initialThreads, 0);
+    }
+
+    @Test
+    void parallelFanOutWrites() throws IOException, InterruptedException {
+        List<String> initialThreads = getCurrentThreadNames();
+        DclareRouter.SHARE_TO_ALL = false;
+
+        RouterConfig config = new RouterConfig();
+        config.parallelFanOutThreshold = 2;
+        config.fanOutThreads           = 4;
+        config.sendBufferSize          = 16 * 1024;
+        DclareRouter main       = new DclareRouter(0, '\n', false, config);
+        int          actualPort = main.getPort();
+        // the client that does not read comes first, so writing to the recipients one by one would never reach the others
+        Socket       stuck      = new Socket();
+        stuck.setReceiveBufferSize(16 * 1024);
+        stuck.connect(new InetSocketAddress("localhost", actualPort));
+        assertNumClientsAfterAWhile(main, 1);
+        stuck.getOutputStream().write((DclareRouterClient.sharedModelsFrame("stuck", List.of("DModel:r:m1")) + "\n").getBytes(StandardCharsets.UTF_8));
+        stuck.getOutputStream().flush();
+        List<TestClient> clients = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            TestClient c = new TestClient(actualPort);
+            clients.add(c);
+            c.writeLine(DclareRouterClient.sharedModelsFrame("c" + i, List.of("DModel:r:m1")));
+        }
+
+        assertSharedModelsAfterAWhile(main, 5);
+        assertExcessThreadsAfterAWhile(initialThreads, 10);
+
+        String large = "{\"DNode:r:m1/n1\":{\"name\":\"" + "b".repeat(2_000_000) + "\"}}";
+        clients.get(0).writeLine(large);
+        for (TestClient c : clients.subList(1, 4)) {
+            assertEquals(large, c.readLine());
+        }
+
+        main.close();
+        stuck.close();
+        clients.forEach(Thread::interrupt);
+        assertExcessThreadsAfterAWhile(initialThreads, 0);
+    }
+
+    @Test
+    void rateLimitedLargeFrame() throws IOException, InterruptedException {
+        List<String> initialThreads = getCurrentThreadNames();
+        DclareRouter.SHARE_TO_ALL = true;
+
+        RouterConfig config = new RouterConfig();
+        config.clientByteRate      = 10_000;
+        config.rateBurstSeconds    = 0.1;
+        config.chunkSize           = 1000;
+        config.cutThroughThreshold = 10_000;
+        DclareRouter main       = new DclareRouter(0, '\n', false, config);
+        int          actualPort = main.getPort();
+        TestClient   c0         = new TestClient(actualPort);
+        TestClient   c1         = new TestClient(actualPort);
+        TestClient   c2         = new TestClient(actualPort);
+
+        assertNumClientsAfterAWhile(main, 3);
+
+        // the throttled large frame of c0 must not hold up the small frame of c1
+        String large = "l".repeat(30_000);
+        c0.writeLine(large);
+        Thread.sleep(1500);
+        long t0 = System.nanoTime();
+        c1.writeLine("small");
+        assertEquals("small", c2.readLine());
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+        assertTrue(elapsedMs < 1000, "a small frame took " + elapsedMs + " ms behind a throttled large frame");
+        assertEquals(large, c2.readLine());
+
+        assertExcessThreadsAfterAWhile(initialThreads, 7);
+        main.close();
+        c0.interrupt();
+        c1.interrupt();
+        c2.interrupt();
+        assertExcessThreadsAfterAWhile(initialThreads, 0);
+    }
+
+    @RepeatedTest(5)
+    void routerClient() throws IOException, InterruptedException {
+        List<String> initialThreads = getCurrentThreadNames();
+        DclareRouter.SHARE_TO_ALL = false;
+
+        DclareRouter          main       = new DclareRouter();
+        int                   actualPort = main.getPort();
+        BlockingQueue<String> in0        = new LinkedBlockingQueue<>();
+        BlockingQueue<String> in1        = new LinkedBlockingQueue<>();
+        DclareRouterClient    c0         = new DclareRouterClient("localhost", actualPort, b -> in0.add(StandardCharsets.UTF_8.decode(b).toString()));
+        DclareRouterClient    c1         = new DclareRouterClient("localhost", actualPort, b -> in1.add(StandardCharsets.UTF_8.decode(b).toString()));
+        c0.setSharedModels(List.of("DModel:r:m1", "DModel:r:m2"));
+        c1.setSharedModels(List.of("DModel:r:m2"));
+
+        assertNumClientsAfterAWhile(main, 2);
+        assertSharedModelsAfterAWhile(main, 2);
+
+        c0.send("{\"DNode:r:m1/n1\":{\"name\":\"a\"}}");
+        c0.send("{\"DNode:r:m2/n1\":{\"name\":\"b\"}}");
+        assertEquals("{\"DNode:r:m2/n1\":{\"name\":\"b\"}}", in1.poll(60, TimeUnit.SECONDS));
+        String s1 = "0123456789abcdef".repeat(64 * 1024);
+        c1.send("{\"DNode:r:m2/n2\":{\"name\":\"" + s1 + "\"}}");
+        assertEquals("{\"DNode:r:m2/n2\":{\"name\":\"" + s1 + "\"}}", in0.poll(60, TimeUnit.SECONDS));
+
+        // the clients reconnect to a new router on the same port and declare their shared models again
+        main.close();
+        main = new DclareRouter(actualPort, '\n', false);
+        assertNumClientsAfterAWhile(main, 2);
+        assertSharedModelsAfterAWhile(main, 2);
+        c1.send("{\"DNode:r:m1/n3\":{\"name\":\"c\"}}");
+        assertEquals("{\"DNode:r:m1/n3\":{\"name\":\"c\"}}", in0.poll(60, TimeUnit.SECONDS));
+        assertNull(in1.poll());
+        assertNull(c0.getThrowable());
+        assertNull(c1.getThrowable());
+
+        assertExcessThreadsAfterAWhile(initialThreads, 5);
+        main.close();
+        c0.close();
+        c1.close();
+        assertExcessThreadsAfterAWhile(initialThreads, 0);
+    }
+
+    @Test
+    void routerClientUnresolvedHost() throws InterruptedException, IOException {
+        List<String> initialThreads = getCurrentThreadNames();
+
+        DclareRouterClient c = new DclareRouterClient("no-such-host.invalid", 55555, b -> {
+        });
+        // a few reconnect attempts, none of which may break the client
+        Thread.sleep(1000);
+        assertNull(c.getThrowable());
+        assertFalse(c.isConnected());
+        assertTrue(c.isAlive());
+
+        c.close();
+        assertExcessThreadsAfterAWhile(initialThreads, 0);
+    }
+
+    @Test
+    void routerClientPending() throws InterruptedException, IOException {
+        List<String> initialThreads = getCurrentThreadNames();
+
+        try (ServerSocket fakeRouter = new ServerSocket(0)) {
+            DclareRouterClient c = new DclareRouterClient("localhost", fakeRouter.getLocalPort(), b -> {
+            });
+            // declared before the first connect: it must still go out exactly once, before the frame
+            c.setSharedModels(List.of("DModel:r:m2"));
+            c.send("{\"DNode:r:m2/n1\":{\"name\":\"a\"}}");
+            try (Socket sock = fakeRouter.accept()) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+                assertTrue(in.readLine().contains("DModel:r:m2"));
+                assertEquals("{\"DNode:r:m2/n1\":{\"name\":\"a\"}}", in.readLine());
+            }
+            c.close();
+        }
+
+        int closedPort;
+        try (ServerSocket s = new ServerSocket(0)) {
+            closedPort = s.getLocalPort();
+        }
+        DclareRouterClient c = new DclareRouterClient("localhost", closedPort, b -> {
+        });
+        c.setMaxPendingBytes(100);
+        assertTrue(c.send("x".repeat(49)));
+        assertTrue(c.send("x".repeat(49)));
+        assertFalse(c.send("x"));
+        c.close();
+
+        assertExcessThreadsAfterAWhile(initialThreads, 0);
+    }
+
+    @Test
+    void tracing() throws IOException, InterruptedException {
+        List<String> initialThreads = getCurrentThreadNames();
+        DclareRouter.SHARE_TO_ALL = true;
+
+        RouterConfig config = new RouterConfig();
+        config.traceSampleRate = 2;
+        config.slowFrameMillis = 0;
+        config.slowFrameLimit  = 3;
+        DclareRouter main       = new DclareRouter(0, '\n', false, config);
+        int          actualPort = main.getPort();
+        TestClient   c0         = new TestClient(actualPort);
+        TestClient   c1         = new TestClient(actualPort);
+        TestClient   c2         = new TestClient(actualPort);
+
+        assertNumClientsAfterAWhile(main, 3);
+
+        for (int i = 0; i < 10; i++) {
+            String s = mediumRandomString();
+            c0.writeLine(s);
+            assertEquals(s, c1.readLine());
+            assertEquals(s, c2.readLine());
+        }
+        FrameTracer tracer = main.getTracer();
+        assertEquals(5, tracer.getHistogram(FrameTracer.Stage.READ).getCount());
+        // the last write is recorded just after the recipient got the frame
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            while (tracer.getHistogram(FrameTracer.Stage.TOTAL).getCount() != 10) {
+                Thread.sleep(1);
+            }
+        });
+        assertTrue(0 < tracer.getHistogram(FrameTracer.Stage.TOTAL).getMax());
+        ByteArrayOutputStream dump = new ByteArrayOutputStream();
+        tracer.printSlowFrames(new PrintStream(dump, true));
+        assertEquals(4, dump.toString().lines().count());
+
+        assertExcessThreadsAfterAWhile(initialThreads, 7);
+        main.close();
+        c0.interrupt();
+        c1.interrupt();
+        c2.interrupt();
+        assertExcessThreadsAfterAWhile(initialThreads, 0);
+    }
+
+    @Test
+    void latencyHistogram() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (long v = 1; v <= 1_000_000; v++) {
+            h.record(v * 1000);
+        }
+        assertEquals(1_000_000, h.getCount());
+        assertEquals(1_000_000_000L, h.getMax());
+        assertTrue(Math.abs(h.getValueAtPercentile(50) - 500_000_000L) < 500_000_000L / 16);
+        assertTrue(Math.abs(h.getValueAtPercentile(99) - 990_000_000L) < 990_000_000L / 16);
+        assertEquals(1_000_000_000L, h.getValueAtPercentile(100));
+    }
+
+    @Test
+    void captureAndReplay() throws IOException, InterruptedException {
+        List<String> initialThreads = getCurrentThreadNames();
+        DclareRouter.SHARE_TO_ALL = true;
+
+        Path         file   = Files.createTempFile("sync-proxy", ".capture");
+        RouterConfig config = new RouterConfig();
+        config.captureFile = file.toString();
+        DclareRouter main       = new DclareRouter(0, '\n', false, config);
+        int          actualPort = main.getPort();
+        TestClient   c0         = new TestClient(actualPort);
+        TestClient   c1         = new TestClient(actualPort);
+
+        assertNumClientsAfterAWhile(main, 2);
+
+        List<String> sent = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            String s0 = "c0-" + i;
+            String s1 = "c1-" + i;
+            c0.writeLine(s0);
+            assertEquals(s0, c1.readLine());
+            c1.writeLine(s1);
+            assertEquals(s1, c0.readLine());
+            sent.add(s0);
+            sent.add(s1);
+        }
+        // identical frames are matched to their own send times
+        for (int i = 0; i < 4; i++) {
+            c0.writeLine("again");
+            assertEquals("again", c1.readLine());
+            sent.add("again");
+        }
+
+        assertExcessThreadsAfterAWhile(initialThreads, 5);
+        main.close();
+        c0.interrupt();
+        c1.interrupt();
+        assertExcessThreadsAfterAWhile(initialThreads, 0);
+
+        try (TrafficCapture.Reader reader = new TrafficCapture.Reader(file)) {
+            assertEquals('\n', reader.getSeparator());
+            List<TrafficCapture.Frame> frames = new ArrayList<>();
+            for (TrafficCapture.Frame f = reader.next(); f != null; f = reader.next()) {
+                frames.add(f);
+            }
+            assertEquals(sent, frames.stream().map(f -> new String(f.bytes())).collect(Collectors.toList()));
+            assertEquals(2, frames.stream().map(TrafficCapture.Frame::connection).distinct().count());
+            assertTrue(frames.get(0).offsetNanos() <= frames.get(43).offsetNanos());
+        }
+
+        TrafficReplay.Result result = TrafficReplay.replay(file, true);
+        assertEquals(44, result.framesSent());
+        assertEquals(44, result.framesReceived());
+        assertEquals(result.bytesSent(), result.bytesReceived());
+        assertEquals(44, result.tracer().getHistogram(FrameTracer.Stage.TOTAL).getCount());
+        assertEquals(44, result.endToEnd().getCount());
+        assertTrue(0 < result.routeNanos());
+        assertExcessThreadsAfterAWhile(initialThreads, 0);
+        Files.delete(file);
+    }
+
+    @Test
+    void backlog() throws IOException {
+        List<String> initialThreads = getCurrentThreadNames();
+
+        RouterConfig config = new RouterConfig();
+        config.backlog = 2;
+        DclareRouter main      = new DclareRouter(0, '\n', false, config);
+        List<Socket> socks     = new ArrayList<>();
+        int          connected = 0;
+        // registering a client needs the router's lock: holding it stops the acceptor after one connection,
+        // so the rest has to wait in the backlog, and the kernel drops connection attempts once that is full
+        synchronized (main) {
+            for (int i = 0; i < 10; i++) {
+                Socket sock = new Socket();
+                socks.add(sock);
+                try {
+                    sock.connect(new InetSocketAddress("localhost", main.getPort()), 300);
+                    connected++;
+                } catch (SocketTimeoutException e) {
+                    // expected once the backlog is full
+                }
+            }
+        }
+        assertTrue(connected < 10, "all connections were accepted with a backlog of " + config.backlog);
+        for (Socket sock : socks) {
+            sock.close();
+        }
+        main.close();
+        assertExcessThreadsAfterAWhile(initialThreads, 0);
+    }
+
+    @RepeatedTest(5)
+    void acceptorPool() throws IOException, InterruptedException {
+        List<String> initialThreads = getCurrentThreadNames();
+        DclareRouter.SHARE_TO_ALL = true;
+
+        boolean reusePort;
+        try (ServerSocket s = new ServerSocket()) {
+            reusePort = s.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+        RouterConfig config = new RouterConfig();
+        config.set("acceptorThreads", "3");
+        config.set("reusePort", String.valueOf(reusePort));
+        config.set("backlog", "10");
+        config.set("sendBufferSize", "65536");
+        config.set("keepAlive", "true");
+        config.set("tcpNoDelay", "false");
+        assertThrows(Error.class, () -> config.set("noSuchOption", "1"));
+        assertThrows(Error.class, () -> config.set("backlog", "many"));
+        assertThrows(Error.class, () -> config.set("tcpNoDelay", "ture"));
+        assertFalse(config.tcpNoDelay);
+        DclareRouter     main       = new DclareRouter(0, '\n', false, config);
+        int              actualPort = main.getPort();
+        List<TestClient> clients    = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            clients.add(new TestClient(actualPort));
+        }
+
+        assertNumClientsAfterAWhile(main, 4);
+        for (ClientInfo ci : main.getClientList(null)) {
+            assertTrue(ci.socketReader.sock.getKeepAlive());
+            assertFalse(ci.socketReader.sock.getTcpNoDelay());
+            assertTrue(65536 <= ci.socketReader.sock.getSendBufferSize());
+        }
+
+        clients.get(0).writeLine("haystack");
+        for (TestClient c : clients.subList(1, 4)) {
+            assertEquals("haystack", c.readLine());
+        }
+
+        assertExcessThreadsAfterAWhile(initialThreads, 3 + 4 + 4);
+        main.close();
+        clients.forEach(Thread::interrupt);
+        assertExcessThreadsAfterAWhile(initialThreads, 0);
+    }
+
+    @RepeatedTest(5)
+    void webSocketClients() throws IOException, InterruptedException {
+        List<String> initialThreads = getCurrentThreadNames();
+        DclareRouter.SHARE_TO_ALL = true;
+
+        RouterConfig config = new RouterConfig();
+        config.webSocketPort       = 0;
+        config.chunkSize           = 10_000;
+        config.cutThroughThreshold = 100_000;
+        DclareRouter  main = new DclareRouter(0, '\n', false, config);
+        TestClient    c0   = new TestClient(main.getPort());
+        TestWebSocket w1   = new TestWebSocket(main.getWebSocketPort());
+        TestWebSocket w2   = new TestWebSocket(main.getWebSocketPort());
+
+        assertNumClientsAfterAWhile(main, 3);
+
+        c0.writeLine("haystack1");
+        assertEquals("haystack1", w1.readMessage());
+        assertEquals("haystack1", w2.readMessage());
+
+        w1.writeMessage("h•yståck2");
+        assertEquals("h•yståck2", c0.readLine());
+        assertEquals("h•yståck2", w2.readMessage());
+
+        // both are streamed cut-through: to the websockets as fragmented messages, from the websocket in parts
+        String big = "0123456789abcdef".repeat(64 * 1024);
+        c0.writeLine(big);
+        assertEquals(big, w1.readMessage());
+        assertEquals(big, w2.readMessage());
+        w2.writeMessage(big);
+        assertEquals(big, c0.readLine());
+        assertEquals(big, w1.readMessage());
+
+        w1.ping("still there?");
+        assertEquals("pong:still there?", w1.readMessage());
+
+        assertExcessThreadsAfterAWhile(initialThreads, 8);
+        main.close();
+        c0.interrupt();
+        w1.close();
+        w2.close();
+        assertExcessThreadsAfterAWhile(initialThreads, 0);
+    }
+
+    @Test
+    void webSocketRejectsPlainHttp() throws IOException {
+        RouterConfig config = new RouterConfig();
+        config.webSocketPort = 0;
+        DclareRouter main = new DclareRouter(0, '\n', false, config);
+        try (Socket sock = new Socket((String) null, main.getWebSocketPort())) {
+            sock.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            String status = new BufferedReader(new InputStreamReader(sock.getInputStream(), StandardCharsets.US_ASCII)).readLine();
+            assertEquals("HTTP/1.1 400 Bad Request", status);
+        }
+        assertEquals(0, main.getNumClients());
+        main.close();
+    }
+
+    @Test
+    void webSocketRejectsSeparator() throws IOException, InterruptedException {
+        List<String> initialThreads = getCurrentThreadNames();
+        DclareRouter.SHARE_TO_ALL = true;
+
+        RouterConfig config = new RouterConfig();
+        config.webSocketPort       = 0;
+        config.chunkSize           = 1000;
+        config.cutThroughThreshold = 10_000;
+        DclareRouter  main = new DclareRouter(0, '\n', false, config);
+        TestClient    c    = new TestClient(main.getPort());
+        TestWebSocket ws0  = new TestWebSocket(main.getWebSocketPort());
+        TestWebSocket ws1  = new TestWebSocket(main.getWebSocketPort());
+        TestWebSocket ws2  = new TestWebSocket(main.getWebSocketPort());
+
+        assertNumClientsAfterAWhile(main, 4);
+
+        // would reach the TCP client as two frames: the sender is disconnected instead
+        ws0.writeMessage("haystack1\nhaystack2");
+        assertEquals("close:1007", ws0.readMessage());
+        assertNumClientsAfterAWhile(main, 3);
+
+        // a streamed message is cut short where the separator is found
+        String streamed = "s".repeat(20_000) + "\n" + "t".repeat(10_000);
+        ws1.writeMessage(streamed);
+        String truncated = c.readLine();
+        assertTrue(truncated.length() < 20_000 && streamed.startsWith(truncated), "got " + truncated.length() + " bytes of the streamed message");
+        assertEquals("close:1007", ws1.readMessage());
+        assertNumClientsAfterAWhile(main, 2);
+
+        ws2.writeMessage("haystack3");
+        assertEquals("haystack3", c.readLine());
+
+        main.close();
+        c.interrupt();
+        ws0.close();
+        ws1.close();
+        ws2.close();
+        assertExcessThreadsAfterAWhile(initialThreads, 0);
+    }
+
+    @Test
+    void webSocketCloseDuringHandshake() throws IOException {
+        List<String> initialThreads = getCurrentThreadNames();
+
+        RouterConfig config = new RouterConfig();
+        config.webSocketPort = 0;
+        DclareRouter main = new DclareRouter(0, '\n', false, config);
+        try (Socket sock = new Socket((String) null, main.getWebSocketPort())) {
+            // no upgrade request is sent: the reader waits in its handshake until the router closes it
+            assertExcessThreadsAfterAWhile(initialThreads, 3);
+            main.close();
+            assertExcessThreadsAfterAWhile(initialThreads, 0);
+            assertEquals(-1, sock.getInputStream().read());
+        }
+    }
+
     //@RepeatedTest(20)
     @Test
     void manyStrings() throws IOException, InterruptedException {
@@ -247,6 +1021,26 @@ class MainTest {
         }, () -> "The number of clients did not get " + expectedNumClients + " in time (it is " + main.getNumClients() + " now)");
     }
 
+    private void assertSharedModelsAfterAWhile(DclareRouter main, int expectedNumClients) {
+        assertTimeoutPreemptively(Duration.ofSeconds(100), () -> {
+            while (main.getClientList(null).stream().filter(ci -> !ci.sharedModels.isEmpty()).count() != expectedNumClients) {
+                Thread.sleep(1);
+            }
+        }, () -> "not all " + expectedNumClients + " clients shared their models in time");
+    }
+
+    private static Outbox outboxOf(DclareRouter main, TestClient c) {
+        return main.getClientList(null).stream().map(ci -> ci.socketReader).filter(sr -> sr.sock.getPort() == c.sock.getLocalPort()).findAny().orElseThrow().outbox;
+    }
+
+    private void assertQueuedAfterAWhile(Outbox outbox, int expectedNumQueued) {
+        assertTimeoutPreemptively(Duration.ofSeconds(100), () -> {
+            while (outbox.getNumQueued() != expectedNumQueued) {
+                Thread.sleep(1);
+            }
+        }, () -> "the number of queued frames did not get " + expectedNumQueued + " in time (it is " + outbox.getNumQueued() + " now)");
+    }
+
     private void assertExcessThreadsAfterAWhile(List<String> initialThreadNames, int extra) {
         int initialSize = initialThreadNames.size();
         assertTimeoutPreemptively(Duration.ofSeconds(1), () -> {
@@ -360,4 +1154,123 @@ class MainTest {
             return line;
         }
     }
+
+    private static class TestWebSocket extends WorkDaemon<String> {
+        private final Socket                sock;
+        private final DataInputStream       in;
+        private final OutputStream          out;
+        private final BlockingQueue<String> messageQueue = new LinkedBlockingQueue<>();
+        private final Random                random       = new Random();
+
+        public TestWebSocket(int port) throws IOException {
+            super("SyncProxy-ws-tester");
+            sock = new Socket((String) null, port);
+            in   = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+            out  = sock.getOutputStream();
+            String key = Base64.getEncoder().encodeToString("0123456789abcdef".getBytes(StandardCharsets.US_ASCII));
+            out.write(("GET /sync HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n" + //
+                    "Sec-WebSocket-Key: " + key + "\r\nSec-WebSocket-Version: 13\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            List<String> response = new ArrayList<>();
+            for (String line = readHeaderLine(); !line.isEmpty(); line = readHeaderLine()) {
+                response.add(line);
+            }
+            assertEquals("HTTP/1.1 101 Switching Protocols", response.get(0));
+            assertTrue(response.contains("Sec-WebSocket-Accept: " + WebSocketReader.acceptKey(key)));
+            start();
+        }
+
+        private String readHeaderLine() throws IOException {
+            StringBuilder b = new StringBuilder();
+            for (int c = in.read(); c != '\n' && c != -1; c = in.read()) {
+                if (c != '\r') {
+                    b.append((char) c);
+                }
+            }
+            return b.toString();
+        }
+
+        @Override
+        protected String waitForWork() {
+            try {
+                ByteArrayOutputStream message = new ByteArrayOutputStream();
+                while (true) {
+                    int  b0  = in.readUnsignedByte();
+                    long len = in.readUnsignedByte() & 0x7F;
+                    if (len == 126) {
+                        len = in.readUnsignedShort();
+                    } else if (len == 127) {
+                        len = in.readLong();
+                    }
+                    byte[] payload = new byte[(int) len];
+                    in.readFully(payload);
+                    if ((b0 & 0x0F) == 0xA) {
+                        return "pong:" + new String(payload, StandardCharsets.UTF_8);
+                    }
+                    if ((b0 & 0x0F) == 0x8) {
+                        return "close:" + (payload.length < 2 ? "" : (payload[0] & 0xFF) << 8 | payload[1] & 0xFF);
+                    }
+                    message.write(payload);
+                    if ((b0 & 0x80) != 0) {
+                        return message.toString(StandardCharsets.UTF_8);
+                    }
+                }
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        protected void execute(String message) throws InterruptedException {
+            if (message == null) {
+                close();
+            } else {
+                messageQueue.put(message);
+            }
+        }
+
+        private synchronized void writeFrame(int opcode, byte[] payload) throws IOException {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            frame.write(0x80 | opcode);
+            if (payload.length <= 125) {
+                frame.write(0x80 | payload.length);
+            } else if (payload.length <= 0xFFFF) {
+                frame.write(0x80 | 126);
+                frame.write(payload.length >>> 8);
+                frame.write(payload.length);
+            } else {
+                frame.write(0x80 | 127);
+                frame.write(ByteBuffer.allocate(8).putLong(payload.length).array());
+            }
+            byte[] mask = new byte[4];
+            random.nextBytes(mask);
+            frame.write(mask);
+            for (int i = 0; i < payload.length; i++) {
+                frame.write(payload[i] ^ mask[i & 3]);
+            }
+            out.write(frame.toByteArray());
+            out.flush();
+        }
+
+        public void writeMessage(String message) throws IOException {
+            writeFrame(0x1, message.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public void ping(String payload) throws IOException {
+            writeFrame(0x9, payload.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public String readMessage() throws InterruptedException {
+            return messageQueue.poll(60_000, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            try {
+                sock.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
 }